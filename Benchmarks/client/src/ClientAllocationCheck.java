@@ -0,0 +1,146 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.management.ThreadMXBean;
+
+/**
+ * Checks that a bidder answering an offer through a garbage-free {@link Connection} allocates nothing. It plays
+ * the server on the client port, streaming offers and discarding the purchase requests, while the bidder reads
+ * each offer with the connection, draws a buy price and sends a purchase request, as {@link LoadGenerator} does.
+ * The bytes allocated by the bidder are counted with {@link ThreadMXBean#getThreadAllocatedBytes(long)}.
+ *
+ * <p>Run its {@code main} method with the {@code Client} sources while no server is running; it sets
+ * {@code client.garbageFree} itself, reads {@code client.protocol} as the client does, and exits with status 1
+ * if answering an offer allocates a byte per operation once warmed up.</p>
+ */
+public class ClientAllocationCheck {
+
+    /** The number of offers answered before measuring, so that the code is compiled. */
+    private static final int WARMUP = 2_000_000;
+
+    /** The number of offers measured. */
+    private static final int OPERATIONS = 5_000_000;
+
+    /** The number of offers encoded in the buffer streamed to the bidder. */
+    private static final int OFFERS = 1024;
+
+    /** How long the bidder waits for an offer, in milliseconds. */
+    private static final int READ_TIMEOUT = 10_000;
+
+    /**
+     * Runs the check.
+     *
+     * @param args unused.
+     * @throws IOException if the connection fails.
+     */
+    public static void main(String[] args) throws IOException {
+        System.setProperty("client.garbageFree", "true");
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLocalHost(), Client.PORT));
+        Thread.ofPlatform().daemon().name("offers").start(() -> serve(server));
+
+        PriceSource prices = Client.priceSource();
+        Protocol.Message message = new Protocol.Message();
+        try (Connection connection = Connection.open(true, READ_TIMEOUT)) {
+            answer(connection, message, prices, WARMUP);
+            long before = threads.getThreadAllocatedBytes(Thread.currentThread().threadId());
+            answer(connection, message, prices, OPERATIONS);
+            long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().threadId()) - before;
+            System.out.printf("%s offers: %d B/op%n", connection.binary() ? "binary" : "text", allocated / OPERATIONS);
+            if (allocated >= OPERATIONS) {
+                System.err.println("Answering an offer allocates");
+                System.exit(1);
+            }
+        }
+    }
+
+    /**
+     * Answers offers as a bidder does, buying whatever the price.
+     *
+     * @param connection the connection to the fake server.
+     * @param message the message filled by each read.
+     * @param prices the source of the buy prices.
+     * @param count the number of offers.
+     * @throws IOException if the connection fails.
+     */
+    private static void answer(Connection connection, Protocol.Message message, PriceSource prices, int count)
+            throws IOException {
+        for (int i = 0; i < count; i++) {
+            connection.read(message);
+            int bid = Client.generatePrice(prices);
+            connection.sendPurchaseRequest(message.lot, message.price, Math.max(bid, message.price), message.sequence);
+        }
+    }
+
+    /**
+     * Accepts the bidder, then streams offers to it forever while another thread discards what it sends.
+     *
+     * @param server the listening channel.
+     */
+    private static void serve(ServerSocketChannel server) {
+        try {
+            SocketChannel channel = server.accept();
+            Thread.ofPlatform().daemon().name("requests").start(() -> discard(channel));
+            ByteBuffer offers = offers(Client.binaryRequested);
+            if (Client.binaryRequested) {
+                channel.write(ByteBuffer.wrap(Protocol.BINARY_HELLO_LINE));
+            }
+            while (true) {
+                offers.rewind();
+                while (offers.hasRemaining()) {
+                    channel.write(offers);
+                }
+            }
+        } catch (IOException e) {
+            // The bidder is done.
+        }
+    }
+
+    /**
+     * Reads and drops the messages of the bidder until it disconnects.
+     *
+     * @param channel the channel connected to the bidder.
+     */
+    private static void discard(SocketChannel channel) {
+        ByteBuffer in = ByteBuffer.allocateDirect(64 * 1024);
+        try {
+            while (channel.read(in.clear()) >= 0) {
+                // The requests are not checked.
+            }
+        } catch (IOException e) {
+            // The bidder is done.
+        }
+    }
+
+    /**
+     * Encodes offers the way the server sends them, for lot 1 so that text offers carry a prefix.
+     *
+     * @param binary whether to encode binary frames.
+     * @return the buffer holding the offers.
+     */
+    private static ByteBuffer offers(boolean binary) {
+        ByteBuffer offers = ByteBuffer.allocateDirect(OFFERS * 16);
+        for (int i = 0; i < OFFERS; i++) {
+            int price = 10 + i % 91;
+            if (binary) {
+                offers.put((byte) 13).put(Protocol.OFFER).putInt(price).putInt(1).putInt(i);
+            } else {
+                offers.put(Protocol.LOT_OFFER.getBytes(StandardCharsets.US_ASCII));
+                Ascii.putInt(offers, 1);
+                offers.put((byte) ' ');
+                Ascii.putInt(offers, price);
+                offers.put((byte) '\n');
+            }
+        }
+        return offers.flip();
+    }
+}
@@ -0,0 +1,96 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how long {@link Client#buy()} takes to read and parse one price offer, in the text and in the
+ * binary protocol. The offers are read from memory, so the result excludes the socket.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OfferParsingBenchmark {
+
+    /** The number of offers encoded before the stream is rewound. */
+    private static final int OFFERS = 1024;
+
+    /** The protocol spoken with the server. */
+    @Param({"text", "binary"})
+    public String protocol;
+
+    /** The encoded offers. */
+    private ByteArrayInputStream bytes;
+
+    /** The stream the offers are read from. */
+    private DataInputStream in;
+
+    /** Whether the offers are binary frames. */
+    private boolean binary;
+
+    /** The offers remaining before the stream is rewound. */
+    private int remaining;
+
+    /** The message filled by each read. */
+    private final Protocol.Message message = new Protocol.Message();
+
+    /**
+     * Encodes the offers the way the server sends them.
+     */
+    @Setup
+    public void setUp() {
+        binary = protocol.equals("binary");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < OFFERS; i++) {
+            int price = 10 + i % 91;
+            if (binary) {
+                out.write(9);
+                out.write(Protocol.OFFER);
+                for (int value : new int[] {price, 0}) {
+                    out.write(value >>> 24);
+                    out.write(value >>> 16);
+                    out.write(value >>> 8);
+                    out.write(value);
+                }
+            } else {
+                out.writeBytes((price + "\n").getBytes(StandardCharsets.US_ASCII));
+            }
+        }
+        bytes = new ByteArrayInputStream(out.toByteArray());
+        in = new DataInputStream(bytes);
+    }
+
+    /**
+     * Reads one offer.
+     *
+     * @return the offered price, to keep the result alive.
+     * @throws IOException never, the offers are in memory.
+     */
+    @Benchmark
+    public int readOffer() throws IOException {
+        if (remaining == 0) {
+            bytes.reset();
+            remaining = OFFERS;
+        }
+        remaining--;
+        Protocol.read(in, binary, message);
+        return message.price;
+    }
+}
@@ -0,0 +1,96 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the garbage-free path of a {@link Connection} with {@code client.garbageFree}: decoding one price
+ * offer in place from a direct buffer, deciding whether to buy, and encoding the purchase request into another
+ * direct buffer, in the text and in the binary protocol. The buffers stand for the socket.
+ *
+ * <p>Run it with the GC profiler, {@code -prof gc}: {@code gc.alloc.rate.norm} should be about 0 B/op.
+ * {@link ClientAllocationCheck} checks the same path through a real connection.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OfferRoundTripBenchmark {
+
+    /** The number of offers encoded before the buffer is rewound. */
+    private static final int OFFERS = 1024;
+
+    /** The protocol spoken with the server. */
+    @Param({"text", "binary"})
+    public String protocol;
+
+    /** Whether the offers are binary frames. */
+    private boolean binary;
+
+    /** The encoded offers, as read from the socket. */
+    private ByteBuffer in;
+
+    /** The purchase requests, as written to the socket. */
+    private final ByteBuffer out = ByteBuffer.allocateDirect(64);
+
+    /** The source of the buy prices. */
+    private final PriceSource prices = Client.priceSource();
+
+    /** The message filled by each decoding. */
+    private final Protocol.Message message = new Protocol.Message();
+
+    /**
+     * Encodes the offers the way the server sends them, for lot 1 so that text offers carry a prefix.
+     */
+    @Setup
+    public void setUp() {
+        binary = protocol.equals("binary");
+        in = ByteBuffer.allocateDirect(OFFERS * 16);
+        for (int i = 0; i < OFFERS; i++) {
+            int price = 10 + i % 91;
+            if (binary) {
+                in.put((byte) 13).put(Protocol.OFFER).putInt(price).putInt(1).putInt(i);
+            } else {
+                in.put(Protocol.LOT_OFFER.getBytes(StandardCharsets.US_ASCII));
+                Ascii.putInt(in, 1);
+                in.put((byte) ' ');
+                Ascii.putInt(in, price);
+                in.put((byte) '\n');
+            }
+        }
+        in.flip();
+    }
+
+    /**
+     * Decodes one offer, decides, and encodes the purchase request whatever the decision, so that every
+     * operation does the same work.
+     *
+     * @return the number of bytes of the request, to keep the result alive.
+     * @throws IOException never, the offers are valid.
+     */
+    @Benchmark
+    public int answerOffer() throws IOException {
+        if (!in.hasRemaining()) {
+            in.rewind();
+        }
+        Protocol.parse(in, binary, message);
+        int bid = Client.generatePrice(prices);
+        out.clear();
+        Protocol.putPurchaseRequest(out, message.lot, message.price, Math.max(bid, message.price), message.sequence, binary);
+        return out.position();
+    }
+}
@@ -0,0 +1,148 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the fan-out done on every tick of {@link Server#generatePrice()}: encoding one price and handing
+ * it to every subscriber of a lot, spread over {@link BroadcastShard}s reading it from a {@link TickRing} on
+ * their own threads. The subscribers live in memory and only keep the last frame, so the result is the cost of
+ * the broadcast itself, without any socket. Each invocation waits until every shard has reached its last subscriber.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+
+    /** The number of subscribers of the lot. */
+    @Param({"1", "100", "10000", "100000"})
+    public int subscribers;
+
+    /** The number of shards, each on its own thread. */
+    @Param({"1", "4"})
+    public int shardCount;
+
+    /** The shards sending the prices. */
+    private BroadcastShard[] shards;
+
+    /** The number of shards that reached their last subscriber, counted by the last subscriber of each shard. */
+    private final AtomicLong delivered = new AtomicLong();
+
+    /** The lot broadcasting the prices. */
+    private Lot lot;
+
+    /** The last price sent. */
+    private int price = 10;
+
+    /** The sequence number of the last tick. */
+    private int sequence;
+
+    /**
+     * A subscriber that keeps the last frame it received.
+     */
+    static class MemorySubscriber implements Subscriber {
+        PriceFrame last; /** The last frame received. */
+
+        private final int id; /** The number of the subscriber, which also chooses its shard. */
+
+        MemorySubscriber(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public int id() {
+            return id;
+        }
+
+        @Override
+        public void send(PriceFrame frame) {
+            last = frame;
+        }
+
+        @Override
+        public void useBinaryProtocol() {
+        }
+
+        @Override
+        public int backlog() {
+            return 0;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * A subscriber, subscribed last in its shard, that counts the frames reaching the end of the shard.
+     */
+    final class LastSubscriber extends MemorySubscriber {
+
+        LastSubscriber(int id) {
+            super(id);
+        }
+
+        @Override
+        public void send(PriceFrame frame) {
+            delivered.incrementAndGet();
+        }
+    }
+
+    /**
+     * Starts the shards, and creates the lot and its subscribers.
+     */
+    @Setup
+    public void setUp() {
+        TickRing ring = new TickRing(1024);
+        shards = new BroadcastShard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = BroadcastShard.start(i);
+            shards[i].follow(ring);
+        }
+        lot = new Lot(0, 1, PriceSource.of("L64X128MixRandom", 42L), shards, ring);
+        for (int i = 0; i < subscribers; i++) {
+            lot.subscribe(new MemorySubscriber(i));
+        }
+        for (int i = 0; i < shardCount; i++) {
+            lot.subscribe(new LastSubscriber(i));
+        }
+    }
+
+    /**
+     * Stops the shards.
+     */
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        for (BroadcastShard shard : shards) {
+            shard.shutdown();
+            shard.awaitTermination();
+        }
+    }
+
+    /**
+     * Broadcasts one price to all subscribers and waits until every shard has sent it.
+     */
+    @Benchmark
+    public void broadcast() {
+        price = price == 100 ? 10 : price + 1;
+        long target = delivered.get() + shardCount;
+        lot.broadcast(price, sequence++ & Integer.MAX_VALUE);
+        while (delivered.get() < target) {
+            Thread.onSpinWait();
+        }
+    }
+}
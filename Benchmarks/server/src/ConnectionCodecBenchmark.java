@@ -0,0 +1,83 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures what a {@link NioConnection} does per message with {@code server.garbageFree}: decoding a tagged text
+ * purchase request in place from a direct read buffer, and copying a price frame into a direct write buffer, in
+ * the text and in the binary protocol. The buffers stand for the socket.
+ *
+ * <p>Run it with the GC profiler, {@code -prof gc}: {@code gc.alloc.rate.norm} should be about 0 B/op for
+ * both.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConnectionCodecBenchmark {
+
+    /** The protocol spoken with the client, for the frames written. */
+    @Param({"text", "binary"})
+    public String protocol;
+
+    /** Whether the frames are written as binary frames. */
+    private boolean binary;
+
+    /** A tagged text purchase request, as read from the socket. */
+    private final ByteBuffer request = ByteBuffer.allocateDirect(Protocol.MAX_LINE_LENGTH);
+
+    /** The decoding of the request. */
+    private final Protocol.Request decoded = new Protocol.Request();
+
+    /** The bytes waiting to be written to the socket. */
+    private final ByteBuffer out = ByteBuffer.allocateDirect(4096);
+
+    /** The price written, shared by every subscriber. */
+    private final PriceFrame frame = new PriceFrame(1, 57, 42);
+
+    /**
+     * Encodes the request the way the client sends it.
+     */
+    @Setup
+    public void setUp() {
+        binary = protocol.equals("binary");
+        request.put((Protocol.TAGGED_PURCHASE_REQUEST + "1 57 60").getBytes(StandardCharsets.US_ASCII)).flip();
+    }
+
+    /**
+     * Decodes a tagged text purchase request.
+     *
+     * @return the bid, to keep the result alive.
+     */
+    @Benchmark
+    public int decodeRequest() {
+        return Protocol.decodeLine(request, 0, request.limit(), decoded).bid;
+    }
+
+    /**
+     * Copies a price frame into the write buffer, emptying it when full as a write to the socket would.
+     *
+     * @return whether the frame was copied, to keep the result alive.
+     */
+    @Benchmark
+    public boolean copyFrame() {
+        if (out.remaining() < frame.length(binary)) {
+            out.clear();
+        }
+        return frame.copyTo(out, binary);
+    }
+}
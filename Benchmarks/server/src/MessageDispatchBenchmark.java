@@ -0,0 +1,121 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how long {@link Server.ClientHandler} and {@link NioConnection} take to dispatch a message once it
+ * has been read: an untagged text purchase request, a tagged one, both decoded in place from a direct buffer as
+ * the connections do, and a tagged binary frame. The requests are handed to a running {@link MatchingEngine},
+ * whose matcher fills them against an open round, and each invocation waits for the matcher to handle its
+ * request, so that the result includes the matching rather than only the hand-off. Console output is discarded,
+ * so that the result includes building the log lines but not the terminal.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageDispatchBenchmark {
+
+    /** An untagged text purchase request. */
+    private final ByteBuffer untaggedRequest = line(Protocol.PURCHASE_REQUEST);
+
+    /** A tagged text purchase request. */
+    private final ByteBuffer taggedRequest = line(Protocol.TAGGED_PURCHASE_REQUEST + "0 57 60");
+
+    /** The decoding of the text requests, reused as by a connection. */
+    private final Protocol.Request request = new Protocol.Request();
+
+    /** The client sending the messages. */
+    private final BroadcastBenchmark.MemorySubscriber subscriber = new BroadcastBenchmark.MemorySubscriber(0);
+
+    /** The payload of a tagged binary purchase request. */
+    private final ByteBuffer payload = ByteBuffer.allocate(12).putInt(0).putInt(57).putInt(60);
+
+    /** The console, restored after the benchmark. */
+    private PrintStream console;
+
+    /**
+     * Starts the auctions, opens a round at the price of the tagged requests and silences the console.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        Server.startAuctions(1, 1);
+        Server.auctions().offer(0, 57);
+    }
+
+    /**
+     * Stops the matchers and restores the console.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Server.stopServer();
+        System.setOut(console);
+    }
+
+    /**
+     * Dispatches an untagged text purchase request.
+     *
+     * @return whether the client finished, to keep the result alive.
+     */
+    @Benchmark
+    public boolean untaggedText() {
+        boolean finished = Server.handleLine(untaggedRequest, 0, untaggedRequest.limit(), request, subscriber);
+        Server.matching().awaitDrained();
+        return finished;
+    }
+
+    /**
+     * Dispatches a tagged text purchase request.
+     *
+     * @return whether the client finished, to keep the result alive.
+     */
+    @Benchmark
+    public boolean taggedText() {
+        boolean finished = Server.handleLine(taggedRequest, 0, taggedRequest.limit(), request, subscriber);
+        Server.matching().awaitDrained();
+        return finished;
+    }
+
+    /**
+     * Encodes a text line into a direct buffer, as read from a socket.
+     *
+     * @param text the line, without its terminator.
+     * @return the buffer holding the line between 0 and its limit.
+     */
+    private static ByteBuffer line(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+        return ByteBuffer.allocateDirect(bytes.length).put(bytes).flip();
+    }
+
+    /**
+     * Dispatches a tagged binary purchase request.
+     *
+     * @return whether the client finished, to keep the result alive.
+     */
+    @Benchmark
+    public boolean taggedBinary() {
+        payload.flip();
+        boolean finished = Server.handleFrame(Protocol.PURCHASE, payload, subscriber);
+        Server.matching().awaitDrained();
+        return finished;
+    }
+}
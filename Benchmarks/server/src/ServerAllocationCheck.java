@@ -0,0 +1,163 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.sun.management.ThreadMXBean;
+
+/**
+ * Checks that dispatching a purchase request allocates nothing, on the thread serving the client or on the
+ * matcher arbitrating the request. It drives {@link Server#handleLine} and {@link Server#handleFrame} with the
+ * messages of {@link MessageDispatchBenchmark} through a running {@link MatchingEngine}, opening a new round
+ * every {@value #ROUND} messages as the price generator would, and counts the bytes allocated by both threads
+ * with {@link ThreadMXBean#getThreadAllocatedBytes(long)}. The match policy and inventory are read from the
+ * usual {@code server} properties.
+ *
+ * <p>Run its {@code main} method with the {@code Server} sources; it exits with status 1 if any message
+ * allocates a byte per operation once warmed up. Console output is discarded, as in the benchmark, so that the
+ * messages are still logged but not written, and the results are printed to the original console.</p>
+ */
+public class ServerAllocationCheck {
+
+    /** The number of messages dispatched before measuring, so that the code is compiled. */
+    private static final int WARMUP = 2_000_000;
+
+    /** The number of messages measured. */
+    private static final int OPERATIONS = 5_000_000;
+
+    /** The number of messages answering each round. */
+    private static final int ROUND = 1000;
+
+    /** The price of the rounds the requests answer. */
+    private static final int PRICE = 57;
+
+    /** The counters of the allocated bytes. */
+    private static final ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    /** An untagged text purchase request. */
+    private final ByteBuffer untaggedRequest = line(Protocol.PURCHASE_REQUEST);
+
+    /** A tagged text purchase request. */
+    private final ByteBuffer taggedRequest = line(Protocol.TAGGED_PURCHASE_REQUEST + "0 " + PRICE + " 60");
+
+    /** The decoding of the text requests, reused as by a connection. */
+    private final Protocol.Request request = new Protocol.Request();
+
+    /** The client sending the messages. */
+    private final BroadcastBenchmark.MemorySubscriber subscriber = new BroadcastBenchmark.MemorySubscriber(0);
+
+    /** The payload of a tagged binary purchase request. */
+    private final ByteBuffer payload = ByteBuffer.allocate(12).putInt(0).putInt(PRICE).putInt(60);
+
+    /** The identifiers of the matcher threads. */
+    private long[] matchers;
+
+    /**
+     * Runs the check.
+     *
+     * @param args unused.
+     */
+    public static void main(String[] args) {
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        threads.setThreadAllocatedMemoryEnabled(true);
+        Server.startAuctions(1, 1);
+
+        ServerAllocationCheck check = new ServerAllocationCheck();
+        check.matchers = matcherThreads();
+        boolean allocated = false;
+        for (int message = 0; message < 3; message++) {
+            check.dispatch(message, WARMUP);
+            long[] before = check.allocatedBytes();
+            check.dispatch(message, OPERATIONS);
+            long[] after = check.allocatedBytes();
+            console.printf("%s: %d B/op dispatching, %d B/op matching%n", name(message),
+                    (after[0] - before[0]) / OPERATIONS, (after[1] - before[1]) / OPERATIONS);
+            allocated |= after[0] - before[0] >= OPERATIONS || after[1] - before[1] >= OPERATIONS;
+        }
+
+        Server.stopServer();
+        if (allocated) {
+            System.err.println("Dispatching a purchase request allocates");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Dispatches messages of one kind, then waits for the matchers to handle them.
+     *
+     * @param message 0 for untagged text, 1 for tagged text, 2 for tagged binary requests.
+     * @param count the number of messages.
+     */
+    private void dispatch(int message, int count) {
+        for (int i = 0; i < count; i++) {
+            if (i % ROUND == 0) {
+                Server.auctions().offer(0, PRICE);
+            }
+            switch (message) {
+                case 0:
+                    Server.handleLine(untaggedRequest, 0, untaggedRequest.limit(), request, subscriber);
+                    break;
+                case 1:
+                    Server.handleLine(taggedRequest, 0, taggedRequest.limit(), request, subscriber);
+                    break;
+                default:
+                    payload.flip();
+                    Server.handleFrame(Protocol.PURCHASE, payload, subscriber);
+            }
+        }
+        Server.matching().awaitDrained();
+    }
+
+    /**
+     * Reads the bytes allocated so far by the calling thread and by the matchers.
+     *
+     * @return the bytes of the calling thread, then the bytes of the matchers.
+     */
+    private long[] allocatedBytes() {
+        long matched = 0;
+        for (long matcher : matchers) {
+            matched += threads.getThreadAllocatedBytes(matcher);
+        }
+        return new long[] {threads.getThreadAllocatedBytes(Thread.currentThread().threadId()), matched};
+    }
+
+    /**
+     * Finds the threads of the matching engine.
+     *
+     * @return their identifiers.
+     */
+    private static long[] matcherThreads() {
+        List<Long> ids = new ArrayList<>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("matcher-")) {
+                ids.add(thread.threadId());
+            }
+        }
+        return ids.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    /**
+     * Names a kind of message.
+     *
+     * @param message 0 for untagged text, 1 for tagged text, 2 for tagged binary requests.
+     * @return its name.
+     */
+    private static String name(int message) {
+        return message == 0 ? "untaggedText" : message == 1 ? "taggedText" : "taggedBinary";
+    }
+
+    /**
+     * Encodes a text line into a direct buffer, as read from a socket.
+     *
+     * @param text the line, without its terminator.
+     * @return the buffer holding the line between 0 and its limit.
+     */
+    private static ByteBuffer line(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+        return ByteBuffer.allocateDirect(bytes.length).put(bytes).flip();
+    }
+}
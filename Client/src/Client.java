@@ -1,80 +1,122 @@
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.InetAddress;
-import java.net.Socket;
-import java.util.Random;
 
 /**
  * The {@code Client} class represents a client in a client-server architecture.
  * It connects to a server, receives price offers, and makes purchase decisions based on those offers.
- * The client can handle up to 10 purchases and sends purchase requests to the server.
+ * The client can handle up to 10 purchases and sends purchase requests to the server,
+ * which confirms or rejects each of them.
+ *
+ * <p>Setting the system property {@code client.protocol} to {@code binary} asks the server for the compact
+ * binary {@link Protocol} instead of text lines. The system property {@code client.lots} lists the lots
+ * (auctions) the client bids on, separated by commas; it defaults to lot 0. Buy prices are drawn from a
+ * {@link PriceSource} using the {@code client.random} algorithm, seeded with {@code client.seed} when set so
+ * that runs can be reproduced.</p>
+ *
+ * <p>Setting {@code client.garbageFree} makes the {@link Connection} decode the offers and encode the purchase
+ * requests in place, in pooled direct buffers, so that answering an offer allocates nothing.</p>
  */
 public class Client {
 
+    /** Whether to ask the server for the binary protocol. */
+    static final boolean binaryRequested = System.getProperty("client.protocol", "text").equals("binary");
+
+    /** The lots the client bids on. */
+    static final String lots = System.getProperty("client.lots", "0");
+
+    /** Whether the connections read and write pooled direct buffers instead of socket streams. */
+    static final boolean garbageFree = Boolean.getBoolean("client.garbageFree");
+
+    /** The port number of the server. */
+    static final int PORT = 9090;
+
+    /** The source of the buy prices of this client. */
+    private final PriceSource prices;
+
+    /**
+     * Constructs a {@code Client} drawing its buy prices from the given source.
+     *
+     * @param prices the source of the buy prices, used by the buying thread only.
+     */
+    public Client(PriceSource prices) {
+        this.prices = prices;
+    }
+
     /**
      * Initiates the buying process by connecting to the server and managing purchase requests.
      * It connects to the server on a predefined port and interacts with it to handle price offers.
      */
     public void buy() {
-        final int port = 9090; // The port number to connect to the server.
         int purchases = 0; // Counter for the number of purchases made.
         int sell_price = 0; // The price offered by the server.
         int buy_price = 0; // The price generated by the client for counteroffer.
+        int pending = 0; // Purchase requests waiting for the answer of the server.
 
-        Socket socket = null; // Socket for connecting to the server.
-        try {
-            // Connect to the server using localhost and the specified port.
-            socket = new Socket(InetAddress.getLocalHost(), port);
-            System.out.println("Connected to " + socket.getInetAddress().getHostAddress());
-
-            // Create input and output streams for communication with the server.
-            BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            PrintWriter printWriter = new PrintWriter(socket.getOutputStream(), true);
+        // Connect to the server using localhost and the specified port, negotiate the protocol and subscribe to the chosen lots.
+        try (Connection connection = Connection.open(false, 0)) {
+            Log.info("Connected to {}", connection);
 
             // Loop until the purchase limit is reached.
-            while (purchases <= 10) {
-                String string = bufferedReader.readLine(); // Read the price offer from the server.
-                sell_price = Integer.parseInt(string); // Parse the offered price.
+            Protocol.Message message = new Protocol.Message();
+            while (purchases < 10) {
+                // Read and parse the next offer or answer from the server.
+                connection.read(message);
 
-                System.out.println("Received offer from server: " + sell_price);
-                buy_price = generatePrice(); // Generate a buy price for counteroffer.
+                if (message.type == Protocol.OFFER) {
+                    sell_price = message.price;
+                    Log.info("Received offer from server: {}", sell_price);
+                    buy_price = generatePrice(prices); // Generate a buy price for counteroffer.
 
-                System.out.println("Counteroffer: " + buy_price);
+                    Log.info("Counteroffer: {}", buy_price);
 
-                // Compare the sell price with the buy price.
-                if (sell_price < buy_price) {
-                    purchases++; // Increment the purchase counter.
-                    System.out.println("Accepted offer from server");
-                    System.out.println("Current purchase count: " + purchases);
-                    printWriter.println("Purchase request"); // Send purchase request to server.
+                    // Compare the sell price with the buy price, without asking for more than the purchase limit.
+                    if (sell_price < buy_price && purchases + pending < 10) {
+                        pending++;
+                        Log.info("Accepted offer from server");
+                        connection.sendPurchaseRequest(message.lot, sell_price, buy_price, message.sequence); // Send purchase request to server.
+                    } else {
+                        Log.info("Rejected offer from server");
+                    }
                 } else {
-                    System.out.println("Rejected offer from server");
-                }
-
-                // Check if the purchase limit has been reached.
-                if (purchases == 10) {
-                    System.out.println("Reached purchase limit");
-                    printWriter.println("Finished purchasing"); // Notify server of finished purchasing.
-                    printWriter.close(); // Close the PrintWriter.
-                    socket.close(); // Close the socket.
+                    pending--;
+                    if (message.type == Protocol.FILLED) {
+                        purchases++; // Increment the purchase counter.
+                        Log.info("Purchase confirmed by server");
+                        Log.info("Current purchase count: {}", purchases);
+                    } else {
+                        Log.info("Purchase rejected by server");
+                    }
                 }
             }
 
+            // The purchase limit has been reached.
+            Log.info("Reached purchase limit");
+            connection.sendFinished(); // Notify server of finished purchasing.
+
+        } catch (Protocol.ServerBusyException e) {
+            Log.warn("The server is busy, try again later");
         } catch (IOException e) {
-            System.out.println("Closing connection due to IOException");
+            Log.warn("Closing connection due to IOException");
         }
     }
 
+    /**
+     * Creates the source of the buy prices configured by the {@code client.random} and {@code client.seed}
+     * system properties. Each bidder gets its own source split from it.
+     *
+     * @return a new source.
+     */
+    static PriceSource priceSource() {
+        return PriceSource.of(System.getProperty("client.random", "L64X128MixRandom"), Long.getLong("client.seed"));
+    }
+
     /**
      * Generates a random buy price between 10 and 75.
      *
+     * @param prices the source of the buy prices of the calling bidder.
      * @return a randomly generated buy price.
      */
-    private static int generatePrice() {
-        Random random = new Random();
-        int buy_price = 10 + random.nextInt(66); // Generate a price between 10 and 75.
+    static int generatePrice(PriceSource prices) {
+        int buy_price = prices.nextPrice(10, 75); // Generate a price between 10 and 75.
         return buy_price; // Return the generated buy price.
     }
 
@@ -85,7 +127,7 @@ public class Client {
      * @param args command-line arguments (not used).
      */
     public static void main(String[] args) {
-        Client client = new Client(); // Create a new client instance.
+        Client client = new Client(priceSource()); // Create a new client instance.
         client.buy(); // Start the buying process.
     }
 }
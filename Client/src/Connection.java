@@ -0,0 +1,358 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.function.Consumer;
+
+/**
+ * A {@code Connection} is the link of a bidder to the server: it negotiates the {@link Protocol}, subscribes to
+ * the lots of the bidder, reads the offers and replies, and sends the purchase requests.
+ *
+ * <p>By default the connection goes through the streams of a {@link Socket}. With {@code client.garbageFree}, it
+ * reads and writes a non-blocking {@link SocketChannel} through direct buffers taken from a {@link BufferPool},
+ * waiting for the server with a {@link Selector} of its own, and decodes and encodes the messages in place, so
+ * that answering an offer allocates nothing.</p>
+ */
+public abstract class Connection implements AutoCloseable {
+
+    /** Whether the server sends binary frames, once negotiated. */
+    protected boolean binary;
+
+    /**
+     * Connects to the server, negotiates the protocol and subscribes to the lots the client bids on.
+     *
+     * @param tcpNoDelay whether to send each purchase request without waiting to coalesce it with the next one.
+     * @param readTimeoutMillis how long to wait for a message from the server, 0 to wait forever.
+     * @return the connection, ready to read offers.
+     * @throws Protocol.ServerBusyException if the server refuses the connection.
+     * @throws IOException if the connection fails.
+     */
+    public static Connection open(boolean tcpNoDelay, int readTimeoutMillis) throws IOException {
+        Connection connection = Client.garbageFree ? new Channel(tcpNoDelay, readTimeoutMillis) : new Streams(tcpNoDelay, readTimeoutMillis);
+        try {
+            connection.negotiate();
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        }
+        return connection;
+    }
+
+    /**
+     * Negotiates the protocol with the server and subscribes to the lots the client bids on.
+     *
+     * @throws IOException if the connection fails.
+     */
+    private void negotiate() throws IOException {
+        // Ask for binary frames and wait for the acknowledgement, skipping the text offers sent meanwhile.
+        if (Client.binaryRequested) {
+            write(Protocol.BINARY_HELLO_LINE);
+            awaitBinaryHello();
+            binary = true;
+        }
+
+        // Subscribe to the chosen lots; the server subscribes every client to lot 0 when it connects.
+        boolean lot0 = false;
+        for (String lot : Client.lots.split(",")) {
+            int id = Integer.parseInt(lot.trim());
+            lot0 |= id == 0;
+            if (id != 0) {
+                write(Protocol.encodeSubscription(true, id, binary));
+            }
+        }
+        if (!lot0) {
+            write(Protocol.encodeSubscription(false, 0, binary));
+        }
+    }
+
+    /**
+     * Tells whether the server sends binary frames.
+     *
+     * @return {@code true} once binary frames were negotiated.
+     */
+    public boolean binary() {
+        return binary;
+    }
+
+    /**
+     * Reads the next price offer or reply. Messages of other types are skipped.
+     *
+     * @param message the message to fill.
+     * @throws IOException if the connection fails, ends or carries an invalid message.
+     */
+    public abstract void read(Protocol.Message message) throws IOException;
+
+    /**
+     * Sends a purchase request answering an offer.
+     *
+     * @param lot the lot of the offer.
+     * @param price the offered price.
+     * @param bid the highest price the client is willing to pay.
+     * @param sequence the sequence number of the offer.
+     * @throws IOException if the connection fails.
+     */
+    public abstract void sendPurchaseRequest(int lot, int price, int bid, int sequence) throws IOException;
+
+    /**
+     * Notifies the server that the client has finished purchasing.
+     *
+     * @throws IOException if the connection fails.
+     */
+    public void sendFinished() throws IOException {
+        write(binary ? Protocol.FINISHED_PURCHASING_FRAME : Protocol.FINISHED_PURCHASING_LINE);
+    }
+
+    /**
+     * Closes the connection.
+     */
+    @Override
+    public abstract void close();
+
+    /**
+     * Writes encoded bytes to the server.
+     *
+     * @param bytes the bytes.
+     * @throws IOException if the connection fails.
+     */
+    protected abstract void write(byte[] bytes) throws IOException;
+
+    /**
+     * Skips the text lines sent by the server until it acknowledges the binary protocol.
+     *
+     * @throws Protocol.ServerBusyException if the server refuses the connection.
+     * @throws IOException if the connection fails or ends.
+     */
+    protected abstract void awaitBinaryHello() throws IOException;
+
+    /**
+     * A {@code Streams} connection reads and writes the streams of a socket.
+     */
+    private static final class Streams extends Connection {
+        private final Socket socket; /** The socket connected to the server. */
+
+        private final DataInputStream in; /** The buffered stream from the server. */
+
+        private final OutputStream out; /** The stream to the server. */
+
+        private Streams(boolean tcpNoDelay, int readTimeoutMillis) throws IOException {
+            socket = new Socket(InetAddress.getLocalHost(), Client.PORT);
+            try {
+                socket.setTcpNoDelay(tcpNoDelay);
+                socket.setSoTimeout(readTimeoutMillis);
+                in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                out = socket.getOutputStream();
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        @Override
+        public void read(Protocol.Message message) throws IOException {
+            Protocol.read(in, binary, message);
+        }
+
+        @Override
+        public void sendPurchaseRequest(int lot, int price, int bid, int sequence) throws IOException {
+            out.write(Protocol.encodePurchaseRequest(lot, price, bid, sequence, binary));
+        }
+
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // The client is done with the connection anyway.
+            }
+        }
+
+        @Override
+        protected void write(byte[] bytes) throws IOException {
+            out.write(bytes);
+        }
+
+        @Override
+        protected void awaitBinaryHello() throws IOException {
+            while (!Protocol.readLine(in).equals(Protocol.BINARY_HELLO)) {
+                // Offers sent before the acknowledgement are ignored.
+            }
+        }
+
+        @Override
+        public String toString() {
+            return socket.toString();
+        }
+    }
+
+    /**
+     * A {@code Channel} connection reads and writes a non-blocking socket channel through pooled direct buffers,
+     * selecting it while the server is not ready.
+     */
+    private static final class Channel extends Connection {
+        /** The capacity of the buffers, far more than the longest message. */
+        private static final int BUFFER_SIZE = 4096;
+
+        /** The buffers of the channel connections, shared by every bidder of the JVM. */
+        private static final BufferPool buffers = new BufferPool(BUFFER_SIZE, 4096);
+
+        /** The action on the selected key, none: the channel is simply tried again. */
+        private static final Consumer<SelectionKey> RETRY = key -> { };
+
+        private final SocketChannel channel; /** The channel connected to the server. */
+
+        private final Selector selector; /** The selector waiting for the channel alone. */
+
+        private final SelectionKey key; /** The registration of the channel with the selector. */
+
+        private final int timeoutMillis; /** How long to wait for the server, 0 to wait forever. */
+
+        private final ByteBuffer in; /** The bytes read from the server and not decoded yet, ready to be read into. */
+
+        private final ByteBuffer out; /** The message being sent to the server. */
+
+        private boolean closed; /** Whether the buffers went back to the pool. */
+
+        private Channel(boolean tcpNoDelay, int readTimeoutMillis) throws IOException {
+            channel = SocketChannel.open();
+            try {
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, tcpNoDelay);
+                channel.connect(new InetSocketAddress(InetAddress.getLocalHost(), Client.PORT));
+                channel.configureBlocking(false);
+                selector = Selector.open();
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            try {
+                key = channel.register(selector, SelectionKey.OP_READ);
+            } catch (IOException e) {
+                selector.close();
+                channel.close();
+                throw e;
+            }
+            timeoutMillis = readTimeoutMillis;
+            in = buffers.acquire();
+            out = buffers.acquire();
+        }
+
+        @Override
+        public void read(Protocol.Message message) throws IOException {
+            while (true) {
+                in.flip();
+                boolean parsed = Protocol.parse(in, binary, message);
+                in.compact();
+                if (parsed) {
+                    return;
+                }
+                fill();
+            }
+        }
+
+        @Override
+        public void sendPurchaseRequest(int lot, int price, int bid, int sequence) throws IOException {
+            out.clear();
+            Protocol.putPurchaseRequest(out, lot, price, bid, sequence, binary);
+            flush();
+        }
+
+        @Override
+        public synchronized void close() {
+            try {
+                selector.close();
+                channel.close();
+            } catch (IOException e) {
+                // The client is done with the connection anyway.
+            }
+            if (!closed) {
+                closed = true;
+                buffers.release(in);
+                buffers.release(out);
+            }
+        }
+
+        @Override
+        protected void write(byte[] bytes) throws IOException {
+            out.clear();
+            out.put(bytes);
+            flush();
+        }
+
+        @Override
+        protected void awaitBinaryHello() throws IOException {
+            while (true) {
+                in.flip();
+                boolean acknowledged = Protocol.skipToBinaryHello(in);
+                in.compact();
+                if (acknowledged) {
+                    return;
+                }
+                fill();
+            }
+        }
+
+        /**
+         * Reads more bytes from the server, after the ones not decoded yet, waiting for them if needed.
+         *
+         * @throws SocketTimeoutException if the server sends nothing within the read timeout.
+         * @throws IOException if the connection fails or ends, or if a message does not fit in the buffer.
+         */
+        private void fill() throws IOException {
+            if (!in.hasRemaining()) {
+                throw new IOException("Message too long");
+            }
+            int read;
+            while ((read = channel.read(in)) == 0) {
+                await(SelectionKey.OP_READ, "Read timed out");
+            }
+            if (read < 0) {
+                throw new EOFException();
+            }
+        }
+
+        /**
+         * Writes the message of the out buffer completely, waiting for the server to take it if needed.
+         *
+         * @throws SocketTimeoutException if the server takes nothing within the read timeout.
+         * @throws IOException if the connection fails.
+         */
+        private void flush() throws IOException {
+            out.flip();
+            while (out.hasRemaining()) {
+                if (channel.write(out) == 0) {
+                    await(SelectionKey.OP_WRITE, "Write timed out");
+                }
+            }
+        }
+
+        /**
+         * Waits until the channel is ready. The selected key is handed to an action rather than added to the
+         * selected-key set, which would allocate an entry each time.
+         *
+         * @param operation the operation to wait for.
+         * @param timeoutMessage the message of the exception thrown on timeout.
+         * @throws SocketTimeoutException if the channel is not ready within the timeout.
+         * @throws IOException if the selector fails.
+         */
+        private void await(int operation, String timeoutMessage) throws IOException {
+            key.interestOps(operation);
+            if (selector.select(RETRY, timeoutMillis) == 0 && timeoutMillis > 0) {
+                throw new SocketTimeoutException(timeoutMessage);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return channel.toString();
+        }
+    }
+}
@@ -0,0 +1,241 @@
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The {@code LoadGenerator} simulates many bidders in one JVM to put realistic load on the server.
+ *
+ * <p>Each bidder has its own connection, served by a virtual thread, and follows the strategy of
+ * {@link Client#buy()}: it answers an offer when the offer is below a random buy price, until its purchase
+ * limit is reached. Nothing is printed per message; instead the generator periodically reports the
+ * aggregate rates of offers, purchase requests, fills and rejects, and the percentiles of the latency
+ * between sending a purchase request and receiving its reply.</p>
+ *
+ * <p>It is configured with system properties: {@code load.bidders} (default 1000), {@code load.purchaseLimit}
+ * per bidder (default 10, 0 for no limit), {@code load.duration} in seconds (default 0, until every bidder
+ * has reached its limit), {@code load.reportInterval} in seconds (default 1), {@code load.readTimeout} in
+ * milliseconds after which a silent server fails the bidder (default 10000) and {@code load.connectConcurrency},
+ * the number of bidders connecting at once (default 32). The {@code client.protocol}, {@code client.lots},
+ * {@code client.random}, {@code client.seed} and {@code client.garbageFree} properties of the {@link Client}
+ * apply to every bidder.</p>
+ */
+public class LoadGenerator {
+
+    /** The number of simulated bidders. */
+    private static final int bidderCount = Integer.getInteger("load.bidders", 1000);
+
+    /** The number of purchases after which a bidder stops, 0 for no limit. */
+    private static final int purchaseLimit = Integer.getInteger("load.purchaseLimit", 10);
+
+    /** How long the bidders run, in seconds, 0 until every bidder has reached its limit. */
+    private static final long durationSeconds = Long.getLong("load.duration", 0);
+
+    /** The interval between two reports, in seconds. */
+    private static final long reportIntervalSeconds = Math.max(1, Long.getLong("load.reportInterval", 1));
+
+    /** How long a bidder waits for a message from the server before giving up, in milliseconds. */
+    private static final int readTimeoutMillis = Integer.getInteger("load.readTimeout", 10_000);
+
+    /** The number of bidders connecting at the same time, kept below the accept backlog of the server. */
+    private static final Semaphore connecting = new Semaphore(Integer.getInteger("load.connectConcurrency", 32));
+
+    /** The number of purchase requests a bidder can have waiting for a reply. */
+    private static final int MAX_PENDING = 16;
+
+    /** The highest latency tracked, in nanoseconds; longer ones are counted as this one. */
+    private static final long HIGHEST_LATENCY = TimeUnit.MINUTES.toNanos(1);
+
+    /** The percentiles of the latency that are reported. */
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    /** The offers received by all bidders. */
+    private static final LongAdder offers = new LongAdder();
+
+    /** The purchase requests sent by all bidders. */
+    private static final LongAdder requests = new LongAdder();
+
+    /** The purchase requests filled by the server. */
+    private static final LongAdder fills = new LongAdder();
+
+    /** The purchase requests rejected by the server. */
+    private static final LongAdder rejects = new LongAdder();
+
+    /** The latencies recorded since the last report, in nanoseconds. */
+    private static final Histogram latency = new Histogram(HIGHEST_LATENCY);
+
+    /** The number of bidders connected to the server. */
+    private static final AtomicInteger active = new AtomicInteger();
+
+    /** The number of bidders that have stopped normally. */
+    private static final AtomicInteger finished = new AtomicInteger();
+
+    /** The number of bidders whose connection failed. */
+    private static final AtomicInteger failed = new AtomicInteger();
+
+    /** The number of bidders turned away by the server because it was busy. */
+    private static final AtomicInteger busy = new AtomicInteger();
+
+    /** Set when the duration has elapsed, to stop the bidders. */
+    private static volatile boolean stopping;
+
+    /**
+     * Runs one bidder until it reaches its purchase limit or the generator stops.
+     *
+     * @param prices the source of the buy prices of this bidder.
+     */
+    private static void bid(PriceSource prices) {
+        int purchases = 0; // Purchases filled by the server.
+        int pending = 0; // Purchase requests waiting for a reply.
+        int[] pendingLots = new int[MAX_PENDING];
+        int[] pendingPrices = new int[MAX_PENDING];
+        long[] pendingTimes = new long[MAX_PENDING];
+        boolean connected = false;
+
+        Connection connection = null;
+        try {
+            connecting.acquireUninterruptibly();
+            try {
+                connection = Connection.open(true, readTimeoutMillis);
+            } finally {
+                connecting.release();
+            }
+            connected = true;
+            active.incrementAndGet();
+
+            Protocol.Message message = new Protocol.Message();
+            while (!stopping && (purchaseLimit == 0 || purchases < purchaseLimit)) {
+                connection.read(message);
+
+                if (message.type == Protocol.OFFER) {
+                    offers.increment();
+                    int buyPrice = Client.generatePrice(prices);
+                    if (message.price < buyPrice && pending < MAX_PENDING
+                            && (purchaseLimit == 0 || purchases + pending < purchaseLimit)) {
+                        pendingLots[pending] = message.lot;
+                        pendingPrices[pending] = message.price;
+                        pendingTimes[pending] = System.nanoTime();
+                        pending++;
+                        connection.sendPurchaseRequest(message.lot, message.price, buyPrice, message.sequence);
+                        requests.increment();
+                    }
+                } else {
+                    // Replies name the lot and price of their request, which may be answered out of order.
+                    for (int i = 0; i < pending; i++) {
+                        if (pendingLots[i] == message.lot && pendingPrices[i] == message.price) {
+                            latency.record(System.nanoTime() - pendingTimes[i]);
+                            pending--;
+                            System.arraycopy(pendingLots, i + 1, pendingLots, i, pending - i);
+                            System.arraycopy(pendingPrices, i + 1, pendingPrices, i, pending - i);
+                            System.arraycopy(pendingTimes, i + 1, pendingTimes, i, pending - i);
+                            break;
+                        }
+                    }
+                    if (message.type == Protocol.FILLED) {
+                        purchases++;
+                        fills.increment();
+                    } else {
+                        rejects.increment();
+                    }
+                }
+            }
+
+            connection.sendFinished();
+            finished.incrementAndGet();
+        } catch (Protocol.ServerBusyException e) {
+            busy.incrementAndGet();
+        } catch (IOException e) {
+            failed.incrementAndGet();
+        } finally {
+            if (connected) {
+                active.decrementAndGet();
+            }
+            if (connection != null) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Prints the rates and latency percentiles of a period.
+     *
+     * @param label what the period is.
+     * @param nanos the length of the period.
+     * @param counts the offers, purchase requests, fills and rejects of the period.
+     * @param histogram the latencies of the period.
+     */
+    private static void report(String label, long nanos, long[] counts, Histogram histogram) {
+        if (!Log.isEnabled(Log.Level.INFO)) {
+            return;
+        }
+        double seconds = nanos / 1e9;
+        StringBuilder line = new StringBuilder(String.format(
+                "%s: bidders %d active, %d finished, %d failed, %d turned away; offers %.0f/s, purchase requests %.0f/s, fills %.0f/s, rejects %.0f/s; latency",
+                label, active.get(), finished.get(), failed.get(), busy.get(),
+                counts[0] / seconds, counts[1] / seconds, counts[2] / seconds, counts[3] / seconds));
+        for (double percentile : PERCENTILES) {
+            line.append(String.format(" p%s %.1f us", percentile == (long) percentile ? String.valueOf((long) percentile)
+                    : String.valueOf(percentile), histogram.valueAtPercentile(percentile) / 1e3));
+        }
+        line.append(String.format(" max %.1f us", histogram.max() / 1e3));
+        Log.info(line.toString());
+    }
+
+    /**
+     * Returns the current totals of the counters.
+     *
+     * @return the offers, purchase requests, fills and rejects so far.
+     */
+    private static long[] counts() {
+        return new long[] {offers.sum(), requests.sum(), fills.sum(), rejects.sum()};
+    }
+
+    /**
+     * Starts the bidders and reports their progress until they have all stopped.
+     *
+     * @param args command-line arguments (not used).
+     * @throws InterruptedException if the generator is interrupted.
+     */
+    public static void main(String[] args) throws InterruptedException {
+        Log.info("Starting {} bidders", bidderCount);
+        Histogram interval = new Histogram(HIGHEST_LATENCY); // The latencies since the last report.
+        Histogram total = new Histogram(HIGHEST_LATENCY); // The latencies since the start.
+        long start = System.nanoTime();
+        long lastReport = start;
+        long[] last = new long[4];
+
+        try (ExecutorService bidders = Executors.newVirtualThreadPerTaskExecutor()) {
+            //every bidder draws from its own source, split in order so that a seed reproduces every bidder
+            PriceSource prices = Client.priceSource();
+            for (int i = 0; i < bidderCount; i++) {
+                PriceSource bidderPrices = prices.split();
+                bidders.execute(() -> bid(bidderPrices));
+            }
+            bidders.shutdown();
+
+            while (!bidders.awaitTermination(reportIntervalSeconds, TimeUnit.SECONDS)) {
+                long now = System.nanoTime();
+                long[] current = counts();
+                for (int i = 0; i < current.length; i++) {
+                    last[i] = current[i] - last[i];
+                }
+                interval.reset();
+                latency.moveTo(interval);
+                total.add(interval);
+                report("Interval", now - lastReport, last, interval);
+                last = current;
+                lastReport = now;
+
+                if (durationSeconds > 0 && now - start >= TimeUnit.SECONDS.toNanos(durationSeconds)) {
+                    stopping = true;
+                }
+            }
+        }
+
+        latency.moveTo(total);
+        report("Total", System.nanoTime() - start, counts(), total);
+    }
+}
@@ -0,0 +1,75 @@
+import java.util.random.RandomGenerator;
+import java.util.random.RandomGeneratorFactory;
+
+/**
+ * A {@code PriceSource} draws the random buy prices of a bidder.
+ *
+ * <p>A source is used by one thread at a time and is never shared: each bidder gets its own stream of prices
+ * with {@link #split()}, so generating prices never contends on a shared seed the way
+ * a single {@link java.util.Random} does. A source created with a seed, and every source split from it in the
+ * same order, produces the same prices on every run.</p>
+ */
+public interface PriceSource {
+
+    /**
+     * Draws the next price.
+     *
+     * @param lowest the lowest price.
+     * @param highest the highest price, not below {@code lowest}.
+     * @return a price between {@code lowest} and {@code highest}, both included.
+     */
+    int nextPrice(int lowest, int highest);
+
+    /**
+     * Creates an independent source for another bidder, advancing this one.
+     *
+     * @return a new source, statistically independent of this one.
+     */
+    PriceSource split();
+
+    /**
+     * Creates a source backed by a splittable generator of the JDK.
+     *
+     * @param algorithm the name of a splittable {@link RandomGeneratorFactory} algorithm, such as
+     *                  {@code L64X128MixRandom} or {@code SplittableRandom}.
+     * @param seed the seed making the prices reproducible, or {@code null} for a different stream on every run.
+     * @return the source.
+     * @throws IllegalArgumentException if the algorithm is unknown or not splittable.
+     */
+    static PriceSource of(String algorithm, Long seed) {
+        RandomGeneratorFactory<RandomGenerator> factory = RandomGeneratorFactory.of(algorithm);
+        if (!factory.isSplittable()) {
+            throw new IllegalArgumentException("Random generator " + algorithm + " is not splittable");
+        }
+        RandomGenerator generator = seed == null ? factory.create() : factory.create(seed);
+        return new Splittable((RandomGenerator.SplittableGenerator) generator);
+    }
+
+    /**
+     * A {@code PriceSource} drawing from a {@link RandomGenerator.SplittableGenerator}.
+     */
+    final class Splittable implements PriceSource {
+
+        /** The generator, only used by the owner of this source. */
+        private final RandomGenerator.SplittableGenerator generator;
+
+        /**
+         * Constructs a {@code Splittable} source.
+         *
+         * @param generator the generator, not shared with any other source.
+         */
+        Splittable(RandomGenerator.SplittableGenerator generator) {
+            this.generator = generator;
+        }
+
+        @Override
+        public int nextPrice(int lowest, int highest) {
+            return lowest + generator.nextInt(highest - lowest + 1);
+        }
+
+        @Override
+        public PriceSource split() {
+            return new Splittable(generator.split());
+        }
+    }
+}
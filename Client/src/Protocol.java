@@ -0,0 +1,417 @@
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * {@code Protocol} defines the messages exchanged with the server.
+ *
+ * <p>By default the server sends each price as a text line and the client answers with text lines.
+ * Prices of lot 0, which every client is subscribed to, are bare numbers; prices of the other lots are
+ * sent as {@code Lot <id> <price>}. Purchase requests name the lot, the price they answer and the bid,
+ * and the server replies with {@code Filled <lot> <price>} or {@code Rejected <lot> <price>}.
+ * A client may send {@link #BINARY_HELLO} as its first line; once the server answers with the same line,
+ * both sides exchange binary frames: one unsigned length byte, followed by that many bytes starting with
+ * the message type. Binary offers carry the sequence number of their tick, which purchase requests echo so
+ * that the server can measure their latency.</p>
+ *
+ * <p>A server serving as many clients as it can answers a new connection with {@link #SERVER_BUSY} and closes
+ * it; reading that line throws a {@link ServerBusyException}.</p>
+ *
+ * <p>Messages are read from streams, or decoded from and encoded into buffers in place with {@link Ascii} for
+ * the connections that must not allocate per message.</p>
+ */
+public final class Protocol {
+
+    /** Line sent to switch to binary frames, and answered by the server to acknowledge the switch. */
+    public static final String BINARY_HELLO = "Protocol binary";
+
+    /** Line sent by a server refusing the connection because it serves as many clients as it can. */
+    public static final String SERVER_BUSY = "Server busy";
+
+    /** Binary frame type of a price offer, followed by the price, the lot and the tick sequence number as 4-byte integers. */
+    public static final byte OFFER = 1;
+
+    /**
+     * Binary frame type of a purchase request, followed by the lot, the price answered, the bid and the
+     * sequence number of the offer as 4-byte integers.
+     */
+    public static final byte PURCHASE = 2;
+
+    /** Binary frame type of a subscription to a lot, followed by the lot as a 4-byte integer. */
+    public static final byte SUBSCRIBE_LOT = 4;
+
+    /** Binary frame type of the end of a subscription to a lot, followed by the lot as a 4-byte integer. */
+    public static final byte UNSUBSCRIBE_LOT = 5;
+
+    /** Binary frame type of a filled purchase request, followed by the price and the lot as 4-byte integers. */
+    public static final byte FILLED = 6;
+
+    /** Binary frame type of a rejected purchase request, followed by the price and the lot as 4-byte integers. */
+    public static final byte REJECTED = 7;
+
+    /** The sequence number of an offer that does not carry one. */
+    public static final int NO_SEQUENCE = -1;
+
+    /** Prefix of the text price offer of a lot other than lot 0. */
+    public static final String LOT_OFFER = "Lot ";
+
+    /** Prefix of the text reply to a filled purchase request. */
+    public static final String FILLED_REPLY = "Filled ";
+
+    /** Prefix of the text reply to a rejected purchase request. */
+    public static final String REJECTED_REPLY = "Rejected ";
+
+    /** The encoded request to switch to binary frames. */
+    public static final byte[] BINARY_HELLO_LINE = (BINARY_HELLO + "\n").getBytes(StandardCharsets.US_ASCII);
+
+    /** The encoded text finish notification. */
+    public static final byte[] FINISHED_PURCHASING_LINE = "Finished purchasing\n".getBytes(StandardCharsets.US_ASCII);
+
+    /** The encoded binary finish notification. */
+    public static final byte[] FINISHED_PURCHASING_FRAME = {1, 3};
+
+    /** The encoded {@link #BINARY_HELLO}. */
+    private static final byte[] BINARY_HELLO_BYTES = BINARY_HELLO.getBytes(StandardCharsets.US_ASCII);
+
+    /** The encoded {@link #SERVER_BUSY}. */
+    private static final byte[] SERVER_BUSY_BYTES = SERVER_BUSY.getBytes(StandardCharsets.US_ASCII);
+
+    /** The encoded {@link #LOT_OFFER}. */
+    private static final byte[] LOT_OFFER_BYTES = LOT_OFFER.getBytes(StandardCharsets.US_ASCII);
+
+    /** The encoded {@link #FILLED_REPLY}. */
+    private static final byte[] FILLED_REPLY_BYTES = FILLED_REPLY.getBytes(StandardCharsets.US_ASCII);
+
+    /** The encoded {@link #REJECTED_REPLY}. */
+    private static final byte[] REJECTED_REPLY_BYTES = REJECTED_REPLY.getBytes(StandardCharsets.US_ASCII);
+
+    /** The encoded prefix of a text purchase request, followed by the lot, the price answered and the bid. */
+    private static final byte[] PURCHASE_REQUEST_BYTES = "Purchase request ".getBytes(StandardCharsets.US_ASCII);
+
+    private Protocol() {
+    }
+
+    /**
+     * A {@code ServerBusyException} is thrown when the server refuses the connection with {@link #SERVER_BUSY}.
+     * The client may connect again later.
+     */
+    public static final class ServerBusyException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Constructs a {@code ServerBusyException}.
+         */
+        public ServerBusyException() {
+            super("Server busy");
+        }
+    }
+
+    /**
+     * A {@code Message} is a price offer or a reply received from the server. A single instance is reused
+     * for every message read.
+     */
+    public static final class Message {
+        /** {@link #OFFER}, {@link #FILLED} or {@link #REJECTED}. */
+        public byte type;
+
+        /** The lot of the offer or of the purchase request. */
+        public int lot;
+
+        /** The offered price, or the price answered by the purchase request. */
+        public int price;
+
+        /** The sequence number of the offer, or {@link #NO_SEQUENCE} if the server did not send one. */
+        public int sequence;
+    }
+
+    /**
+     * Encodes a subscription to a lot, or the end of one.
+     *
+     * @param subscribe {@code true} to subscribe, {@code false} to unsubscribe.
+     * @param lot the identifier of the lot.
+     * @param binary whether to encode a binary frame instead of a text line.
+     * @return the encoded message.
+     */
+    public static byte[] encodeSubscription(boolean subscribe, int lot, boolean binary) {
+        if (binary) {
+            return new byte[] {
+                5, subscribe ? SUBSCRIBE_LOT : UNSUBSCRIBE_LOT,
+                (byte) (lot >>> 24), (byte) (lot >>> 16), (byte) (lot >>> 8), (byte) lot
+            };
+        }
+        return ((subscribe ? "Subscribe " : "Unsubscribe ") + lot + "\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Encodes a purchase request answering an offer.
+     *
+     * @param lot the lot of the offer.
+     * @param price the offered price.
+     * @param bid the highest price the client is willing to pay.
+     * @param sequence the sequence number of the offer, echoed in binary frames only; text offers carry none.
+     * @param binary whether to encode a binary frame instead of a text line.
+     * @return the encoded message.
+     */
+    public static byte[] encodePurchaseRequest(int lot, int price, int bid, int sequence, boolean binary) {
+        if (binary) {
+            return new byte[] {
+                17, PURCHASE,
+                (byte) (lot >>> 24), (byte) (lot >>> 16), (byte) (lot >>> 8), (byte) lot,
+                (byte) (price >>> 24), (byte) (price >>> 16), (byte) (price >>> 8), (byte) price,
+                (byte) (bid >>> 24), (byte) (bid >>> 16), (byte) (bid >>> 8), (byte) bid,
+                (byte) (sequence >>> 24), (byte) (sequence >>> 16), (byte) (sequence >>> 8), (byte) sequence
+            };
+        }
+        return ("Purchase request " + lot + " " + price + " " + bid + "\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Encodes a purchase request answering an offer at the position of a buffer, without allocating anything.
+     *
+     * @param out the buffer, with room for the request.
+     * @param lot the lot of the offer.
+     * @param price the offered price.
+     * @param bid the highest price the client is willing to pay.
+     * @param sequence the sequence number of the offer, echoed in binary frames only; text offers carry none.
+     * @param binary whether to encode a binary frame instead of a text line.
+     */
+    public static void putPurchaseRequest(ByteBuffer out, int lot, int price, int bid, int sequence, boolean binary) {
+        if (binary) {
+            out.put((byte) 17).put(PURCHASE).putInt(lot).putInt(price).putInt(bid).putInt(sequence);
+            return;
+        }
+        out.put(PURCHASE_REQUEST_BYTES);
+        Ascii.putInt(out, lot);
+        out.put((byte) ' ');
+        Ascii.putInt(out, price);
+        out.put((byte) ' ');
+        Ascii.putInt(out, bid);
+        out.put((byte) '\n');
+    }
+
+    /**
+     * Reads the next price offer or reply. Messages of other types are skipped.
+     *
+     * @param in the stream to read from.
+     * @param binary whether the server sends binary frames.
+     * @param message the message to fill.
+     * @throws IOException if the stream fails, ends or carries an invalid message.
+     */
+    public static void read(DataInputStream in, boolean binary, Message message) throws IOException {
+        if (binary) {
+            readFrame(in, message);
+        } else {
+            parseLine(readLine(in), message);
+        }
+    }
+
+    /**
+     * Reads binary frames until a price offer or a reply arrives.
+     *
+     * @param in the stream to read from.
+     * @param message the message to fill.
+     * @throws IOException if the stream fails or ends.
+     */
+    private static void readFrame(DataInputStream in, Message message) throws IOException {
+        while (true) {
+            int length = in.readUnsignedByte();
+            if (length == 0) {
+                throw new IOException("Empty frame");
+            }
+            byte type = in.readByte();
+            if ((type == OFFER || type == FILLED || type == REJECTED) && length >= 9) {
+                message.type = type;
+                message.price = in.readInt();
+                message.lot = in.readInt();
+                if (length >= 13) {
+                    message.sequence = in.readInt();
+                    in.skipNBytes(length - 13);
+                } else {
+                    message.sequence = NO_SEQUENCE;
+                    in.skipNBytes(length - 9);
+                }
+                return;
+            }
+            in.skipNBytes(length - 1);
+        }
+    }
+
+    /**
+     * Parses a text price offer or reply.
+     *
+     * @param line the line sent by the server.
+     * @param message the message to fill.
+     * @throws IOException if the line is not a price offer or a reply.
+     */
+    private static void parseLine(String line, Message message) throws IOException {
+        message.sequence = NO_SEQUENCE;
+        try {
+            if (line.startsWith(LOT_OFFER)) {
+                message.type = OFFER;
+                parseLotAndPrice(line.substring(LOT_OFFER.length()), message);
+            } else if (line.startsWith(FILLED_REPLY)) {
+                message.type = FILLED;
+                parseLotAndPrice(line.substring(FILLED_REPLY.length()), message);
+            } else if (line.startsWith(REJECTED_REPLY)) {
+                message.type = REJECTED;
+                parseLotAndPrice(line.substring(REJECTED_REPLY.length()), message);
+            } else {
+                message.type = OFFER;
+                message.lot = 0;
+                message.price = Integer.parseInt(line);
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid message from server: " + line, e);
+        }
+    }
+
+    /**
+     * Parses {@code <lot> <price>}.
+     *
+     * @param text the text to parse.
+     * @param message the message to fill.
+     */
+    private static void parseLotAndPrice(String text, Message message) {
+        int space = text.indexOf(' ');
+        message.lot = Integer.parseInt(text.substring(0, space));
+        message.price = Integer.parseInt(text.substring(space + 1));
+    }
+
+    /**
+     * Decodes the next price offer or reply from the bytes of a buffer, in place. Messages of other types are
+     * skipped.
+     *
+     * @param in the bytes received from the server, between the position and the limit; the position is moved
+     *           past the messages decoded or skipped.
+     * @param binary whether the server sends binary frames.
+     * @param message the message to fill.
+     * @return {@code false} if the buffer does not hold a complete offer or reply yet.
+     * @throws ServerBusyException if the line is {@link #SERVER_BUSY}.
+     * @throws IOException if the buffer holds an invalid message.
+     */
+    public static boolean parse(ByteBuffer in, boolean binary, Message message) throws IOException {
+        if (binary) {
+            while (in.hasRemaining()) {
+                int start = in.position();
+                int length = in.get(start) & 0xff;
+                if (length == 0) {
+                    throw new IOException("Empty frame");
+                }
+                if (in.remaining() < 1 + length) {
+                    return false;
+                }
+                in.position(start + 1 + length);
+                byte type = in.get(start + 1);
+                if ((type == OFFER || type == FILLED || type == REJECTED) && length >= 9) {
+                    message.type = type;
+                    message.price = in.getInt(start + 2);
+                    message.lot = in.getInt(start + 6);
+                    message.sequence = length >= 13 ? in.getInt(start + 10) : NO_SEQUENCE;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        int start = in.position();
+        int end = Ascii.indexOf(in, start, in.limit(), (byte) '\n');
+        if (end < 0) {
+            return false;
+        }
+        in.position(end + 1);
+        int to = end > start && in.get(end - 1) == '\r' ? end - 1 : end;
+        message.sequence = NO_SEQUENCE;
+        try {
+            if (Ascii.startsWith(in, start, to, LOT_OFFER_BYTES)) {
+                message.type = OFFER;
+                parseLotAndPrice(in, start + LOT_OFFER_BYTES.length, to, message);
+            } else if (Ascii.startsWith(in, start, to, FILLED_REPLY_BYTES)) {
+                message.type = FILLED;
+                parseLotAndPrice(in, start + FILLED_REPLY_BYTES.length, to, message);
+            } else if (Ascii.startsWith(in, start, to, REJECTED_REPLY_BYTES)) {
+                message.type = REJECTED;
+                parseLotAndPrice(in, start + REJECTED_REPLY_BYTES.length, to, message);
+            } else if (Ascii.equals(in, start, to, SERVER_BUSY_BYTES)) {
+                throw new ServerBusyException();
+            } else {
+                message.type = OFFER;
+                message.lot = 0;
+                message.price = Ascii.parseInt(in, start, to);
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid message from server: " + Ascii.toString(in, start, to), e);
+        }
+        return true;
+    }
+
+    /**
+     * Parses {@code <lot> <price>} in place.
+     *
+     * @param in the buffer holding the text.
+     * @param from the index of the first character.
+     * @param to the index following the last character.
+     * @param message the message to fill.
+     */
+    private static void parseLotAndPrice(ByteBuffer in, int from, int to, Message message) {
+        int space = Ascii.indexOf(in, from, to, (byte) ' ');
+        if (space < 0) {
+            throw new NumberFormatException("Expected lot and price");
+        }
+        message.lot = Ascii.parseInt(in, from, space);
+        message.price = Ascii.parseInt(in, space + 1, to);
+    }
+
+    /**
+     * Skips the complete text lines of a buffer until the acknowledgement of the binary protocol.
+     *
+     * @param in the bytes received from the server, between the position and the limit; the position is moved
+     *           past the lines skipped and the acknowledgement.
+     * @return {@code true} once the acknowledgement has been skipped, {@code false} if more bytes are needed.
+     * @throws ServerBusyException if a line is {@link #SERVER_BUSY}.
+     */
+    public static boolean skipToBinaryHello(ByteBuffer in) throws ServerBusyException {
+        int end;
+        while ((end = Ascii.indexOf(in, in.position(), in.limit(), (byte) '\n')) >= 0) {
+            int start = in.position();
+            int to = end > start && in.get(end - 1) == '\r' ? end - 1 : end;
+            in.position(end + 1);
+            if (Ascii.equals(in, start, to, SERVER_BUSY_BYTES)) {
+                throw new ServerBusyException();
+            }
+            if (Ascii.equals(in, start, to, BINARY_HELLO_BYTES)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads an ASCII line from a stream without buffering past its end, so that the stream can switch
+     * to binary frames right after the line.
+     *
+     * @param in the stream to read from.
+     * @return the line without its terminator.
+     * @throws ServerBusyException if the line is {@link #SERVER_BUSY}.
+     * @throws IOException if the stream fails or ends.
+     */
+    public static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) {
+                throw new EOFException();
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        if (SERVER_BUSY.contentEquals(line)) {
+            throw new ServerBusyException();
+        }
+        return line.toString();
+    }
+}
@@ -0,0 +1,183 @@
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * {@code Ascii} encodes and decodes the decimal integers of the text protocol in place, in byte arrays and
+ * buffers, so that a message can be read or written without building a {@link String}.
+ *
+ * <p>The decoders only use the absolute methods of {@link ByteBuffer}, so a buffer being parsed keeps its
+ * position and limit; the buffer encoder appends at the position like the relative put methods. Nothing is
+ * allocated, except the exception thrown for malformed input.</p>
+ */
+public final class Ascii {
+
+    private Ascii() {
+    }
+
+    /**
+     * Returns the number of characters of the decimal form of a value.
+     *
+     * @param value the value.
+     * @return the number of digits, plus one for the sign of a negative value.
+     */
+    public static int length(int value) {
+        long remaining = Math.abs((long) value);
+        int length = value < 0 ? 2 : 1;
+        while (remaining >= 10) {
+            remaining /= 10;
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * Writes the decimal form of a value into an array.
+     *
+     * @param bytes the array.
+     * @param offset the index of the first character.
+     * @param value the value.
+     * @return the index following the last character.
+     */
+    public static int putInt(byte[] bytes, int offset, int value) {
+        int end = offset + length(value);
+        long remaining = Math.abs((long) value);
+        int i = end;
+        do {
+            bytes[--i] = (byte) ('0' + remaining % 10);
+            remaining /= 10;
+        } while (remaining != 0);
+        if (value < 0) {
+            bytes[--i] = '-';
+        }
+        return end;
+    }
+
+    /**
+     * Writes the decimal form of a value at the position of a buffer, and moves the position past it.
+     *
+     * @param buffer the buffer.
+     * @param value the value.
+     * @throws BufferOverflowException if the buffer has not enough room left.
+     */
+    public static void putInt(ByteBuffer buffer, int value) {
+        int length = length(value);
+        if (length > buffer.remaining()) {
+            throw new BufferOverflowException();
+        }
+        int end = buffer.position() + length;
+        long remaining = Math.abs((long) value);
+        int i = end;
+        do {
+            buffer.put(--i, (byte) ('0' + remaining % 10));
+            remaining /= 10;
+        } while (remaining != 0);
+        if (value < 0) {
+            buffer.put(--i, (byte) '-');
+        }
+        buffer.position(end);
+    }
+
+    /**
+     * Parses a decimal integer, with an optional sign, as {@link Integer#parseInt(String)} does.
+     *
+     * @param buffer the buffer holding the characters.
+     * @param from the index of the first character.
+     * @param to the index following the last character.
+     * @return the value.
+     * @throws NumberFormatException if the characters are not a decimal integer that fits an {@code int}.
+     */
+    public static int parseInt(ByteBuffer buffer, int from, int to) {
+        int i = from;
+        boolean negative = false;
+        if (i < to && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+            negative = buffer.get(i) == '-';
+            i++;
+        }
+        if (i == to) {
+            throw new NumberFormatException("Not an int");
+        }
+        long value = 0;
+        for (; i < to; i++) {
+            int digit = buffer.get(i) - '0';
+            //stops before the value could overflow a long
+            if (digit < 0 || digit > 9 || value > Integer.MAX_VALUE) {
+                throw new NumberFormatException("Not an int");
+            }
+            value = value * 10 + digit;
+        }
+        value = negative ? -value : value;
+        if (value != (int) value) {
+            throw new NumberFormatException("Not an int");
+        }
+        return (int) value;
+    }
+
+    /**
+     * Finds a character.
+     *
+     * @param buffer the buffer to search.
+     * @param from the index to start from.
+     * @param to the index to stop before.
+     * @param c the character.
+     * @return the index of the first occurrence, or -1 if there is none.
+     */
+    public static int indexOf(ByteBuffer buffer, int from, int to, byte c) {
+        for (int i = from; i < to; i++) {
+            if (buffer.get(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Tells whether characters start with a prefix.
+     *
+     * @param buffer the buffer holding the characters.
+     * @param from the index of the first character.
+     * @param to the index following the last character.
+     * @param prefix the encoded prefix.
+     * @return {@code true} if the characters start with the prefix.
+     */
+    public static boolean startsWith(ByteBuffer buffer, int from, int to, byte[] prefix) {
+        if (to - from < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (buffer.get(from + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Tells whether characters are the same as encoded ones.
+     *
+     * @param buffer the buffer holding the characters.
+     * @param from the index of the first character.
+     * @param to the index following the last character.
+     * @param bytes the encoded characters.
+     * @return {@code true} if they are the same.
+     */
+    public static boolean equals(ByteBuffer buffer, int from, int to, byte[] bytes) {
+        return to - from == bytes.length && startsWith(buffer, from, to, bytes);
+    }
+
+    /**
+     * Copies characters into a {@link String}, for the rare messages that need one, such as an invalid one
+     * being logged.
+     *
+     * @param buffer the buffer holding the characters.
+     * @param from the index of the first character.
+     * @param to the index following the last character.
+     * @return the characters.
+     */
+    public static String toString(ByteBuffer buffer, int from, int to) {
+        char[] chars = new char[to - from];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) (buffer.get(from + i) & 0xff);
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,180 @@
+/**
+ * The {@code AuctionEngine} runs many concurrent auctions, each one a {@link Lot} with its own price stream.
+ *
+ * <p>All lots share a single {@link TimerWheel} driven by the price generator thread: each call to
+ * {@link #advance()} is one engine tick, and a lot generates a price every {@link Lot#interval()} ticks.
+ * Lots with the same interval are spread over different ticks, so that their prices do not all go out at once.
+ * Clients subscribe to the lots they care about and only receive their prices. Every new price opens a
+ * round in the {@link MatchingEngine}, which arbitrates the purchase requests answering it, and is stamped by
+ * the {@link LatencyTracker}, which measures how long the requests take to arrive. When recording, the price is
+ * journaled first, so that the requests matched against its round follow it in the log. The price is then
+ * published to the {@link TickRing}, whose readers send it to the clients on their own threads, so the price
+ * generator never waits for them.</p>
+ */
+public class AuctionEngine {
+
+    /** The shards sending the prices to the clients. */
+    private final BroadcastShard[] shards;
+
+    /** The lots, indexed by identifier. */
+    private final Lot[] lots;
+
+    /** The wheel scheduling the lots. */
+    private final TimerWheel wheel;
+
+    /** The engine arbitrating the purchase requests. */
+    private final MatchingEngine matching;
+
+    /** The tracker stamping the ticks and measuring the latency of the purchase requests. */
+    private final LatencyTracker latency;
+
+    /** The recorder journaling the prices, {@code null} if they are not recorded. */
+    private final Recorder recorder;
+
+    /**
+     * Constructs an {@code AuctionEngine} with the given number of lots.
+     *
+     * @param lotCount the number of lots, at least 1.
+     * @param interval the number of engine ticks between two prices of a lot, at least 1.
+     * @param prices the source of the prices, split into one independent source per lot.
+     * @param matching the engine arbitrating the purchase requests, with the same number of lots.
+     * @param latency the tracker stamping the ticks.
+     * @param recorder the recorder journaling the prices, {@code null} to not record them.
+     * @param ring the ring the prices are published to; the engine is its only producer.
+     * @param shards the shards sending the prices to the clients, indexed by {@link BroadcastShard#index()}.
+     */
+    public AuctionEngine(int lotCount, int interval, PriceSource prices, MatchingEngine matching, LatencyTracker latency,
+                         Recorder recorder, TickRing ring, BroadcastShard[] shards) {
+        if (lotCount < 1 || interval < 1) {
+            throw new IllegalArgumentException("Invalid auction setup: " + lotCount + " lots every " + interval + " ticks");
+        }
+        this.lots = new Lot[lotCount];
+        this.wheel = new TimerWheel(interval);
+        this.matching = matching;
+        this.latency = latency;
+        this.recorder = recorder;
+        this.shards = shards;
+        for (int id = 0; id < lotCount; id++) {
+            lots[id] = new Lot(id, interval, prices.split(), shards, ring);
+            wheel.schedule(lots[id], id % interval);
+        }
+    }
+
+    /**
+     * Advances the engine by one tick, generating the prices of the lots due. Called by the price generator thread.
+     */
+    public void advance() {
+        wheel.advance(this);
+    }
+
+    /**
+     * Generates the next price of a lot and sends it to its subscribers. Called by the wheel on the price
+     * generator thread.
+     *
+     * @param lot the lot due.
+     */
+    void fire(Lot lot) {
+        publish(lot, lot.nextPrice());
+    }
+
+    /**
+     * Offers a given price for a lot instead of a random one, as when replaying a recording.
+     *
+     * @param id the identifier of the lot; unknown lots are ignored.
+     * @param price the price.
+     */
+    public void offer(int id, int price) {
+        Lot lot = lot(id);
+        if (lot != null) {
+            publish(lot, price);
+        }
+    }
+
+    /**
+     * Opens a round for a new price of a lot and publishes the price to the ring.
+     *
+     * @param lot the lot.
+     * @param price the new price.
+     */
+    private void publish(Lot lot, int price) {
+        //the price is recorded before the round opens, so that a replay matches the same requests against it
+        if (recorder != null) {
+            recorder.price(lot.id(), price);
+        }
+        //the matcher learns about the price before any client can answer it
+        matching.open(lot.id(), price);
+        lot.broadcast(price, latency.stamp());
+    }
+
+    /**
+     * Records the latency of a purchase request and submits it to the matching engine.
+     *
+     * @param lot the identifier of the lot, or any value for an unknown lot.
+     * @param price the price the request answers, or {@link MatchingEngine#CURRENT_PRICE}.
+     * @param bid the highest price the client is willing to pay.
+     * @param sequence the sequence number of the offer the request answers, or {@link LatencyTracker#NO_SEQUENCE}.
+     * @param subscriber the client.
+     * @param reply whether the client expects a fill or reject reply.
+     * @return {@code false} if there is no such lot.
+     */
+    public boolean purchase(int lot, int price, int bid, int sequence, Subscriber subscriber, boolean reply) {
+        Lot target = lot(lot);
+        if (target == null) {
+            return false;
+        }
+        latency.record(subscriber, sequence == LatencyTracker.NO_SEQUENCE ? target.sequenceOf(price) : sequence);
+        matching.purchase(lot, price, bid, subscriber, reply);
+        return true;
+    }
+
+    /**
+     * Gets a lot.
+     *
+     * @param id the identifier of the lot.
+     * @return the lot, or {@code null} if there is no lot with this identifier.
+     */
+    public Lot lot(int id) {
+        return id >= 0 && id < lots.length ? lots[id] : null;
+    }
+
+    /**
+     * Subscribes a client to a lot.
+     *
+     * @param id the identifier of the lot.
+     * @param subscriber the client.
+     * @return {@code false} if there is no such lot.
+     */
+    public boolean subscribe(int id, Subscriber subscriber) {
+        Lot lot = lot(id);
+        if (lot == null) {
+            return false;
+        }
+        lot.subscribe(subscriber);
+        return true;
+    }
+
+    /**
+     * Unsubscribes a client from a lot.
+     *
+     * @param id the identifier of the lot.
+     * @param subscriber the client.
+     * @return {@code false} if there is no such lot.
+     */
+    public boolean unsubscribe(int id, Subscriber subscriber) {
+        Lot lot = lot(id);
+        if (lot == null) {
+            return false;
+        }
+        lot.unsubscribe(subscriber);
+        return true;
+    }
+
+    /**
+     * Unsubscribes a client from every lot, once it disconnected.
+     *
+     * @param subscriber the client.
+     */
+    public void unsubscribeAll(Subscriber subscriber) {
+        BroadcastShard.of(shards, subscriber).unsubscribeAll(subscriber);
+    }
+}
@@ -0,0 +1,360 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A {@code BroadcastShard} owns a partition of the connected clients and sends them the prices of the lots they
+ * are subscribed to.
+ *
+ * <p>Each client belongs to one shard, chosen by {@link Subscriber#shard()}, and the subscribers of each lot are
+ * kept in plain lists read and written by the single thread owning the shard. Other threads never touch the
+ * lists: every shard reads the prices from the {@link TickRing} with a reader of its own, and subscriptions go
+ * through a lock-free {@link MpscQueue}, each stamped with the last price published when it was made, so that a
+ * shard applies it between the same two prices on every run. The fan-out of a price to many clients is thus
+ * spread over as many threads as there are shards, without any shared lock.</p>
+ *
+ * <p>In {@code nio} mode each {@link EventLoop} owns a shard and drains it on its own thread, so a client is
+ * handed its prices by the thread that writes them to its socket. Otherwise each shard runs on a thread of
+ * its own, started with {@link #start(int)}.</p>
+ */
+public final class BroadcastShard implements Runnable, TickRing.Handler {
+
+    /** The index of the shard. */
+    private final int index;
+
+    /** The event loop draining the shard, {@code null} if it runs on its own thread. */
+    private final EventLoop loop;
+
+    /** The subscription changes waiting for the owning thread. */
+    private final MpscQueue<Event> queue = new MpscQueue<>();
+
+    /** The reader of the prices, {@code null} until the shard {@link #follow follows} a ring. */
+    private volatile TickRing.Reader reader;
+
+    /** The subscribers of each lot in the order they subscribed, indexed by lot. Only accessed by the owning thread. */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private ArrayList<Subscriber>[] subscribers = new ArrayList[0];
+
+    /** The lots each client of the shard is subscribed to. Only accessed by the owning thread. */
+    private final Map<Subscriber, BitSet> lotsOf = new HashMap<>();
+
+    /** The lots with a list of subscribers, indexed like {@link #subscribers}. Only accessed by the owning thread. */
+    private Lot[] lots = new Lot[0];
+
+    /** The thread running the shard when it is not drained by an event loop. */
+    private Thread thread;
+
+    /** Set while the shard thread is about to park or parked. */
+    private volatile boolean waiting;
+
+    /** Cleared to stop the shard thread. */
+    private volatile boolean running = true;
+
+    /**
+     * Constructs a {@code BroadcastShard}.
+     *
+     * @param index the index of the shard.
+     * @param loop the event loop draining the shard, or {@code null} if it is run on its own thread.
+     */
+    BroadcastShard(int index, EventLoop loop) {
+        this.index = index;
+        this.loop = loop;
+    }
+
+    /**
+     * Creates a shard running on its own thread, and starts the thread.
+     *
+     * @param index the index of the shard.
+     * @return the started shard.
+     */
+    public static BroadcastShard start(int index) {
+        BroadcastShard shard = new BroadcastShard(index, null);
+        shard.thread = new Thread(shard, "broadcast-" + index);
+        shard.thread.start();
+        return shard;
+    }
+
+    /**
+     * Finds the shard of a client.
+     *
+     * @param shards the shards of the server.
+     * @param subscriber the client.
+     * @return the shard owning the client.
+     */
+    static BroadcastShard of(BroadcastShard[] shards, Subscriber subscriber) {
+        return shards[Math.floorMod(subscriber.shard(), shards.length)];
+    }
+
+    /**
+     * Gets the index of the shard.
+     *
+     * @return the index.
+     */
+    public int index() {
+        return index;
+    }
+
+    /**
+     * Makes the shard read the prices published to a ring. Called once, before the first price is published.
+     *
+     * @param ring the ring of the prices.
+     */
+    public void follow(TickRing ring) {
+        reader = ring.reader(this::wake);
+    }
+
+    /**
+     * Subscribes a client of this shard to a lot. Subscribing twice has no effect.
+     *
+     * @param lot the lot.
+     * @param subscriber the client.
+     */
+    void subscribe(Lot lot, Subscriber subscriber) {
+        post(new Event(Event.SUBSCRIBE, lot, subscriber));
+    }
+
+    /**
+     * Unsubscribes a client of this shard from a lot.
+     *
+     * @param lot the lot.
+     * @param subscriber the client.
+     */
+    void unsubscribe(Lot lot, Subscriber subscriber) {
+        post(new Event(Event.UNSUBSCRIBE, lot, subscriber));
+    }
+
+    /**
+     * Unsubscribes a client of this shard from every lot, once it disconnected.
+     *
+     * @param subscriber the client.
+     */
+    void unsubscribeAll(Subscriber subscriber) {
+        post(new Event(Event.UNSUBSCRIBE_ALL, null, subscriber));
+    }
+
+    /**
+     * Sends the prices available to the shard and applies the queued subscription changes, each after the prices
+     * published before it was made. Only called by the owning thread.
+     */
+    void drain() {
+        TickRing.Reader reader = this.reader;
+        if (reader == null) {
+            Event event;
+            while ((event = queue.poll()) != null) {
+                apply(event);
+            }
+            return;
+        }
+        //the prices are read first, so that a change stamped after one of them is not applied before it
+        long available = reader.available();
+        Event event;
+        while ((event = queue.peek()) != null && event.sequence <= available) {
+            reader.consume(event.sequence, this);
+            apply(queue.poll());
+        }
+        reader.consume(available, this);
+    }
+
+    /**
+     * Sends a price read from the ring to the subscribers of its lot in this shard.
+     *
+     * @param tick the price.
+     */
+    @Override
+    public void onTick(TickRing.Tick tick) {
+        PriceFrame frame = tick.frame();
+        if (frame == null) {
+            return;
+        }
+        int id = tick.lot().id();
+        if (id >= subscribers.length || subscribers[id] == null) {
+            return;
+        }
+        ArrayList<Subscriber> lotSubscribers = subscribers[id];
+        for (int i = 0; i < lotSubscribers.size(); i++) {
+            lotSubscribers.get(i).send(frame);
+        }
+    }
+
+    /**
+     * Applies a subscription change.
+     *
+     * @param event the change.
+     */
+    private void apply(Event event) {
+        switch (event.kind) {
+            case Event.SUBSCRIBE: {
+                BitSet subscribed = lotsOf.computeIfAbsent(event.subscriber, subscriber -> new BitSet());
+                if (subscribed.get(event.lot.id())) {
+                    event.lot.dropped();
+                } else {
+                    subscribed.set(event.lot.id());
+                    add(event.lot, event.subscriber);
+                }
+                break;
+            }
+            case Event.UNSUBSCRIBE: {
+                BitSet subscribed = lotsOf.get(event.subscriber);
+                if (subscribed != null && subscribed.get(event.lot.id())) {
+                    subscribed.clear(event.lot.id());
+                    remove(event.lot.id(), event.subscriber);
+                }
+                break;
+            }
+            default: {
+                BitSet subscribed = lotsOf.remove(event.subscriber);
+                if (subscribed != null) {
+                    for (int id = subscribed.nextSetBit(0); id >= 0; id = subscribed.nextSetBit(id + 1)) {
+                        remove(id, event.subscriber);
+                    }
+                }
+                break;
+            }
+        }
+    }
+
+    /**
+     * Runs the shard on its own thread: performs the available work, parking when there is nothing to do, until
+     * {@link #shutdown()} is called and every published price and queued change is handled.
+     */
+    @Override
+    public void run() {
+        while (running || !idle()) {
+            drain();
+            //announces the park before looking again, so that a producer either sees the flag and unparks, or
+            //its work is seen here
+            waiting = true;
+            if (!ready() && running) {
+                LockSupport.park(this);
+            }
+            waiting = false;
+        }
+    }
+
+    /**
+     * Stops the shard thread once it has performed the work already queued.
+     */
+    public void shutdown() {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * Waits for the shard thread to stop after {@link #shutdown()}.
+     *
+     * @throws InterruptedException if the calling thread is interrupted while waiting.
+     */
+    public void awaitTermination() throws InterruptedException {
+        if (thread != null) {
+            thread.join();
+        }
+    }
+
+    /**
+     * Tells whether {@link #drain()} has work to do now. Only called by the owning thread.
+     *
+     * @return {@code true} if a price or a change can be handled.
+     */
+    private boolean ready() {
+        TickRing.Reader reader = this.reader;
+        if (reader == null) {
+            return !queue.isEmpty();
+        }
+        long available = reader.available();
+        Event event = queue.peek();
+        return available > reader.handled() || event != null && event.sequence <= available;
+    }
+
+    /**
+     * Tells whether every published price and queued change was handled. Only called by the owning thread.
+     *
+     * @return {@code true} if there is nothing left to do.
+     */
+    private boolean idle() {
+        TickRing.Reader reader = this.reader;
+        return queue.isEmpty() && (reader == null || !reader.behind());
+    }
+
+    /**
+     * Queues a subscription change for the owning thread, stamped with the last price published, and wakes the
+     * thread up.
+     *
+     * @param event the change.
+     */
+    private void post(Event event) {
+        TickRing.Reader reader = this.reader;
+        event.sequence = reader == null ? -1 : reader.published();
+        queue.offer(event);
+        wake();
+    }
+
+    /**
+     * Wakes the owning thread up, when work is posted or a price becomes available to it.
+     */
+    private void wake() {
+        if (loop != null) {
+            loop.wakeup();
+        } else if (waiting) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Adds a client to the subscribers of a lot in this shard.
+     *
+     * @param lot the lot.
+     * @param subscriber the client, not subscribed to the lot yet.
+     */
+    private void add(Lot lot, Subscriber subscriber) {
+        int id = lot.id();
+        if (id >= subscribers.length) {
+            int length = Math.max(id + 1, 2 * subscribers.length);
+            subscribers = Arrays.copyOf(subscribers, length);
+            lots = Arrays.copyOf(lots, length);
+        }
+        if (subscribers[id] == null) {
+            subscribers[id] = new ArrayList<>();
+            lots[id] = lot;
+        }
+        subscribers[id].add(subscriber);
+    }
+
+    /**
+     * Removes a client from the subscribers of a lot in this shard, and uncounts its subscription.
+     *
+     * @param id the identifier of the lot.
+     * @param subscriber the client, subscribed to the lot.
+     */
+    private void remove(int id, Subscriber subscriber) {
+        subscribers[id].remove(subscriber);
+        lots[id].dropped();
+    }
+
+    /**
+     * An {@code Event} is a change of the subscriptions of a client.
+     */
+    private static final class Event {
+        private static final int SUBSCRIBE = 0; /** A client subscribing to a lot. */
+
+        private static final int UNSUBSCRIBE = 1; /** A client unsubscribing from a lot. */
+
+        private static final int UNSUBSCRIBE_ALL = 2; /** A client unsubscribing from every lot. */
+
+        private final int kind; /** What happens. */
+
+        private final Lot lot; /** The lot, {@code null} for {@link #UNSUBSCRIBE_ALL}. */
+
+        private final Subscriber subscriber; /** The client subscribing or unsubscribing. */
+
+        private long sequence; /** The sequence in the ring of the last price published before the change. */
+
+        private Event(int kind, Lot lot, Subscriber subscriber) {
+            this.kind = kind;
+            this.lot = lot;
+            this.subscriber = subscriber;
+        }
+    }
+}
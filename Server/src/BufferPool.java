@@ -0,0 +1,69 @@
+import java.nio.ByteBuffer;
+
+/**
+ * A {@code BufferPool} hands out direct buffers of one size and takes them back for reuse.
+ *
+ * <p>A direct buffer lives outside the heap, so the socket reads and writes it without the copy through a
+ * temporary native buffer that a heap buffer costs, and it is never moved by the garbage collector. Direct
+ * memory is expensive to allocate and only released once its buffer is collected, so buffers are carved out
+ * of large slabs and recycled: a connection takes its buffers when it opens and gives them back when it
+ * closes, and nothing is allocated per message.</p>
+ */
+public final class BufferPool {
+
+    /** The number of buffers carved out of each slab. */
+    private static final int SLAB_BUFFERS = 64;
+
+    /** The capacity of every buffer. */
+    private final int bufferSize;
+
+    /** The buffers available for reuse. Guarded by the pool. */
+    private final ByteBuffer[] free;
+
+    /** The number of buffers in {@link #free}. Guarded by the pool. */
+    private int freeCount;
+
+    /** The slab the next buffers are carved from, {@code null} before the first one. Guarded by the pool. */
+    private ByteBuffer slab;
+
+    /**
+     * Constructs an empty {@code BufferPool}.
+     *
+     * @param bufferSize the capacity of every buffer.
+     * @param maxFree the number of released buffers kept for reuse; more are left to the garbage collector.
+     */
+    public BufferPool(int bufferSize, int maxFree) {
+        this.bufferSize = bufferSize;
+        this.free = new ByteBuffer[maxFree];
+    }
+
+    /**
+     * Takes a buffer, reusing a released one if there is any.
+     *
+     * @return a cleared direct buffer, owned by the caller until it is released.
+     */
+    public synchronized ByteBuffer acquire() {
+        if (freeCount > 0) {
+            ByteBuffer buffer = free[--freeCount];
+            free[freeCount] = null;
+            return buffer;
+        }
+        if (slab == null || !slab.hasRemaining()) {
+            slab = ByteBuffer.allocateDirect(bufferSize * SLAB_BUFFERS);
+        }
+        ByteBuffer buffer = slab.slice(slab.position(), bufferSize);
+        slab.position(slab.position() + bufferSize);
+        return buffer;
+    }
+
+    /**
+     * Gives a buffer back to the pool. The caller must not use it afterwards.
+     *
+     * @param buffer a buffer taken from this pool.
+     */
+    public synchronized void release(ByteBuffer buffer) {
+        if (freeCount < free.length) {
+            free[freeCount++] = buffer.clear();
+        }
+    }
+}
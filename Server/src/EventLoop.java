@@ -0,0 +1,238 @@
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * An {@code EventLoop} serves many client connections from a single thread using a {@link Selector}.
+ *
+ * <p>Connections are handed over by an accepting thread with {@link #register(NioConnection)}.
+ * Other threads never touch the selector directly: they queue their work and wake the loop up,
+ * and the loop performs it on its own thread before the next call to {@link Selector#select()}.
+ * This includes closing a connection, so that its buffers are only given back by the loop thread.</p>
+ *
+ * <p>Each loop owns the {@link BroadcastShard} of its connections and drains it on every iteration, so the
+ * prices are handed to the connections by the thread that writes them.</p>
+ *
+ * <p>Each connection with queued frames is written once per iteration, with all its frames in one gathering
+ * write. With a batching delay, the loop lets the frames accumulate for up to that delay after the first
+ * flush request before writing every pending connection, and is not woken up by the requests arriving
+ * meanwhile, so that the ticks of many lots or of a fast generator share system calls and TCP segments.</p>
+ */
+public final class EventLoop implements Runnable {
+
+    /** The selector multiplexing all connections owned by this loop. */
+    private final Selector selector;
+
+    /** The shard sending the prices to the connections of this loop. */
+    private final BroadcastShard shard;
+
+    /** Connections waiting to be registered with the selector. */
+    private final Queue<NioConnection> pendingRegistrations = new ConcurrentLinkedQueue<>();
+
+    /** Connections closed by other threads, waiting to be disconnected on the loop thread. */
+    private final Queue<NioConnection> pendingCloses = new ConcurrentLinkedQueue<>();
+
+    /** Connections with queued outbound data waiting to be written. */
+    private final Queue<NioConnection> pendingFlushes = new ConcurrentLinkedQueue<>();
+
+    /** Set when a wakeup has been issued and not yet consumed, so that bursts of work wake the selector only once. */
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+
+    /** How long a flush request may wait for others, in nanoseconds, 0 to flush on the next iteration. */
+    private final long flushDelayNanos;
+
+    /** Set from the first flush request until the pending flushes are taken, so that only the first one wakes the loop. */
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+    /** The time at which the pending flushes are due, 0 if none. Only accessed by the loop thread. */
+    private long flushDeadline;
+
+    /** The thread running the loop, {@code null} until it starts. */
+    private volatile Thread thread;
+
+    /** A flag to control the running state of the loop. Defined as volatile since it is modified by the stopping thread. */
+    private volatile boolean running = true;
+
+    /**
+     * Constructs an {@code EventLoop} with its own selector.
+     *
+     * @param index the index of the loop, which is also the index of its shard.
+     * @param flushDelayNanos how long the queued frames may wait to be written with others, in nanoseconds;
+     *                        0 writes them on the next iteration of the loop.
+     * @throws IOException if the selector cannot be opened.
+     */
+    public EventLoop(int index, long flushDelayNanos) throws IOException {
+        this.shard = new BroadcastShard(index, this);
+        this.flushDelayNanos = flushDelayNanos;
+        selector = Selector.open();
+    }
+
+    /**
+     * Gets the shard drained by this loop.
+     *
+     * @return the shard of the connections of this loop.
+     */
+    public BroadcastShard shard() {
+        return shard;
+    }
+
+    /**
+     * Hands a new connection over to this loop. The connection is registered on the loop thread.
+     *
+     * @param connection the connection to serve.
+     */
+    public void register(NioConnection connection) {
+        pendingRegistrations.add(connection);
+        wakeup();
+    }
+
+    /**
+     * Asks the loop to write the queued outbound data of a connection.
+     *
+     * @param connection the connection with pending data.
+     */
+    void requestFlush(NioConnection connection) {
+        pendingFlushes.add(connection);
+        if (flushDelayNanos == 0 || flushRequested.compareAndSet(false, true)) {
+            wakeup();
+        }
+    }
+
+    /**
+     * Asks the loop to disconnect a connection closed by another thread.
+     *
+     * @param connection the connection to disconnect.
+     */
+    void requestClose(NioConnection connection) {
+        pendingCloses.add(connection);
+        wakeup();
+    }
+
+    /**
+     * Tells whether the calling thread is the loop thread.
+     *
+     * @return {@code true} if called by the loop.
+     */
+    boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Wakes the selector up unless a wakeup is already pending.
+     */
+    void wakeup() {
+        if (wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Runs the loop: registers new connections, disconnects closed ones, writes pending data and dispatches ready
+     * connections until {@link #shutdown()} is called.
+     */
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        try {
+            while (running) {
+                if (flushDeadline == 0) {
+                    selector.select();
+                } else {
+                    long remaining = flushDeadline - System.nanoTime();
+                    if (remaining > 0) {
+                        selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining)));
+                    } else {
+                        selector.selectNow();
+                    }
+                }
+                //from here on, new work must wake the selector again
+                wakeupPending.set(false);
+
+                NioConnection connection;
+                while ((connection = pendingRegistrations.poll()) != null) {
+                    connection.attach(selector);
+                }
+                disconnectClosed();
+                //queues the new prices before the pending connections are written
+                shard.drain();
+                if (flushDue()) {
+                    while ((connection = pendingFlushes.poll()) != null) {
+                        connection.flush();
+                    }
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    connection = (NioConnection) key.attachment();
+                    if (key.isValid() && key.isReadable()) {
+                        connection.onReadable();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.flush();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.warn("Event loop stopped: {}", e.getMessage());
+        } finally {
+            //the connections closed while the server was stopping
+            disconnectClosed();
+            try {
+                selector.close();
+            } catch (IOException e) {
+                Log.warn("Failed to close selector: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Disconnects the connections closed by other threads.
+     */
+    private void disconnectClosed() {
+        NioConnection connection;
+        while ((connection = pendingCloses.poll()) != null) {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Tells whether the pending flushes must be performed now, starting the batching delay on the first request.
+     *
+     * @return {@code true} if the pending connections are to be written in this iteration.
+     */
+    private boolean flushDue() {
+        if (flushDelayNanos == 0) {
+            return true;
+        }
+        long now = System.nanoTime();
+        if (flushDeadline == 0) {
+            if (pendingFlushes.isEmpty()) {
+                return false;
+            }
+            flushDeadline = now + flushDelayNanos;
+            return false;
+        }
+        if (now - flushDeadline < 0) {
+            return false;
+        }
+        flushDeadline = 0;
+        //cleared before the pending flushes are taken, so that a later request wakes the loop again
+        flushRequested.set(false);
+        return true;
+    }
+
+    /**
+     * Stops the loop. The selector is closed by the loop thread once it exits.
+     */
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+}
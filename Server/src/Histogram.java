@@ -0,0 +1,176 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A {@code Histogram} counts latencies in buckets of bounded relative error, in the manner of HdrHistogram.
+ *
+ * <p>Values below 128 have a bucket each; above, every power of two is split into 64 buckets, so a value is
+ * reported with an error below 1/64 (about 1.6%). A coarser histogram, with fewer buckets per power of two,
+ * takes a fraction of the memory for many series that only need rough percentiles. Recording is a single
+ * atomic increment, so many threads can record into the same histogram while another one reads or drains it.
+ * Values above the highest trackable value, chosen when the histogram is created, are counted as that
+ * value.</p>
+ */
+public final class Histogram {
+
+    /** The number of bits resolving a value within its power of two, by default. */
+    private static final int SUB_BUCKET_BITS = 6;
+
+    /** The number of bits resolving a value within its power of two. */
+    private final int subBucketBits;
+
+    /** The number of buckets per power of two. */
+    private final int subBuckets;
+
+    /** The highest value counted exactly; higher values are counted as this one. */
+    private final long highestValue;
+
+    /** The number of values recorded in each bucket. */
+    private final AtomicLongArray counts;
+
+    /**
+     * Constructs an empty {@code Histogram}. Its memory grows with the logarithm of the highest value.
+     *
+     * @param highestValue the highest value to track, at least 1.
+     */
+    public Histogram(long highestValue) {
+        this(highestValue, SUB_BUCKET_BITS);
+    }
+
+    /**
+     * Constructs an empty {@code Histogram} of a given precision.
+     *
+     * @param highestValue the highest value to track, at least 1.
+     * @param subBucketBits the number of bits resolving a value within its power of two, between 1 and 6:
+     *                      values are reported with an error below 1/2<sup>subBucketBits</sup>.
+     */
+    public Histogram(long highestValue, int subBucketBits) {
+        this.subBucketBits = subBucketBits;
+        this.subBuckets = 1 << subBucketBits;
+        this.highestValue = Math.max(1, highestValue);
+        this.counts = new AtomicLongArray(bucketOf(this.highestValue) + 1);
+    }
+
+    /**
+     * Records a value. Negative values are recorded as 0.
+     *
+     * @param value the value, typically in nanoseconds.
+     */
+    public void record(long value) {
+        counts.incrementAndGet(bucketOf(Math.min(Math.max(0, value), highestValue)));
+    }
+
+    /**
+     * Moves all the values of this histogram to another one, leaving this one empty. Values recorded
+     * concurrently are either moved or kept for the next call.
+     *
+     * @param target the histogram receiving the values, with the same highest trackable value and precision.
+     */
+    public void moveTo(Histogram target) {
+        for (int i = 0; i < counts.length(); i++) {
+            if (counts.get(i) != 0) {
+                target.counts.addAndGet(i, counts.getAndSet(i, 0));
+            }
+        }
+    }
+
+    /**
+     * Adds the values of another histogram to this one.
+     *
+     * @param other the histogram to add, with the same highest trackable value and precision.
+     */
+    public void add(Histogram other) {
+        for (int i = 0; i < counts.length(); i++) {
+            long count = other.counts.get(i);
+            if (count != 0) {
+                counts.addAndGet(i, count);
+            }
+        }
+    }
+
+    /**
+     * Removes all the values.
+     */
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+    }
+
+    /**
+     * Returns the number of values recorded.
+     *
+     * @return the number of values.
+     */
+    public long count() {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * Returns the value below which a percentage of the recorded values fall.
+     *
+     * @param percentile the percentage, between 0 and 100.
+     * @return the highest value of the bucket holding that percentile, or 0 if the histogram is empty.
+     */
+    public long valueAtPercentile(double percentile) {
+        long total = count();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * Math.min(100, percentile) / 100));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return highestValueOf(i);
+            }
+        }
+        return highestValueOf(counts.length() - 1);
+    }
+
+    /**
+     * Returns the highest value recorded, within the precision of the histogram.
+     *
+     * @return the highest value, or 0 if the histogram is empty.
+     */
+    public long max() {
+        for (int i = counts.length() - 1; i >= 0; i--) {
+            if (counts.get(i) != 0) {
+                return highestValueOf(i);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Finds the bucket of a value.
+     *
+     * @param value a value, not negative.
+     * @return the index of its bucket.
+     */
+    private int bucketOf(long value) {
+        if (value < 2 * subBuckets) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - subBucketBits;
+        return shift * subBuckets + (int) (value >>> shift);
+    }
+
+    /**
+     * Returns the highest value counted in a bucket.
+     *
+     * @param bucket the index of the bucket.
+     * @return the highest value of the bucket.
+     */
+    private long highestValueOf(int bucket) {
+        if (bucket < 2 * subBuckets) {
+            return bucket;
+        }
+        int shift = bucket / subBuckets - 1;
+        long mantissa = bucket - (long) shift * subBuckets;
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,142 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The {@code LatencyTracker} measures the time from the generation of a price to the arrival of the purchase
+ * requests answering it.
+ *
+ * <p>Every price is a tick stamped with a sequence number and the {@link System#nanoTime()} of its generation.
+ * The stamps of the last {@link #HISTORY} ticks are kept in a ring indexed by sequence number, written by the
+ * price generator only. Binary clients echo the sequence number of the offer in their purchase requests; for
+ * other requests the server uses the latest tick of the lot if the request answers its price. Each latency is
+ * recorded in a {@link Histogram} of all the clients and in one of the requesting client. The histogram of a
+ * client is created with its first measured request and is coarse, within 25%, so that a hundred thousand
+ * clients take about a hundred megabytes rather than gigabytes.</p>
+ */
+public class LatencyTracker {
+
+    /** The sequence number of a purchase request that does not name its tick. */
+    public static final int NO_SEQUENCE = -1;
+
+    /** The number of ticks whose stamps are kept; a request answering an older tick is not measured. */
+    private static final int HISTORY = 1 << 16;
+
+    /** The highest latency tracked, in nanoseconds; longer ones are counted as this one. */
+    private static final long HIGHEST_LATENCY = TimeUnit.MINUTES.toNanos(1);
+
+    /** The bits resolving a latency within its power of two in the histogram of a client. */
+    private static final int CLIENT_PRECISION_BITS = 2;
+
+    /** The percentiles exposed for scraping. */
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    /** The sequence number of the tick stamped in each slot of the ring, written after its time. */
+    private final AtomicIntegerArray sequences = new AtomicIntegerArray(HISTORY);
+
+    /** The generation time of the tick in each slot of the ring. */
+    private final AtomicLongArray times = new AtomicLongArray(HISTORY);
+
+    /** The next sequence number. Only accessed by the price generator thread. */
+    private int nextSequence;
+
+    /** The latencies of all the clients. */
+    private final Histogram overall = new Histogram(HIGHEST_LATENCY);
+
+    /** The latencies of each connected client. */
+    private final Map<Subscriber, Histogram> perClient = new ConcurrentHashMap<>();
+
+    /**
+     * Constructs a {@code LatencyTracker} with no tick stamped yet.
+     */
+    public LatencyTracker() {
+        for (int i = 0; i < HISTORY; i++) {
+            sequences.set(i, NO_SEQUENCE);
+        }
+    }
+
+    /**
+     * Stamps a new tick with the next sequence number and the current time. Called by the price generator thread.
+     *
+     * @return the sequence number of the tick, never negative.
+     */
+    public int stamp() {
+        int sequence = nextSequence;
+        nextSequence = (sequence + 1) & Integer.MAX_VALUE;
+        int slot = sequence & (HISTORY - 1);
+
+        //invalidates the slot while its time is replaced, so that a reader never pairs a sequence with another time
+        sequences.set(slot, NO_SEQUENCE);
+        times.set(slot, System.nanoTime());
+        sequences.set(slot, sequence);
+        return sequence;
+    }
+
+    /**
+     * Records the latency of a purchase request.
+     *
+     * @param subscriber the client sending the request.
+     * @param sequence the sequence number of the tick the request answers, or {@link #NO_SEQUENCE}.
+     */
+    public void record(Subscriber subscriber, int sequence) {
+        if (sequence < 0) {
+            return;
+        }
+        int slot = sequence & (HISTORY - 1);
+        int before = sequences.get(slot);
+        long time = times.get(slot);
+        if (before != sequence || sequences.get(slot) != sequence) {
+            //the tick is too old, or the client echoed a sequence number that was never sent
+            return;
+        }
+        long latency = System.nanoTime() - time;
+        overall.record(latency);
+        perClient.computeIfAbsent(subscriber, s -> new Histogram(HIGHEST_LATENCY, CLIENT_PRECISION_BITS)).record(latency);
+    }
+
+    /**
+     * Forgets the latencies of a client that disconnected. They remain in the overall histogram.
+     *
+     * @param subscriber the client.
+     */
+    public void remove(Subscriber subscriber) {
+        perClient.remove(subscriber);
+    }
+
+    /**
+     * Appends the latency percentiles in the Prometheus text exposition format, overall and per client.
+     *
+     * @param out the builder receiving the metrics.
+     */
+    public void writeMetrics(StringBuilder out) {
+        out.append("# HELP auction_purchase_latency_seconds Time from the generation of a price to the arrival of a purchase request answering it.\n");
+        out.append("# TYPE auction_purchase_latency_seconds summary\n");
+        writeSummary(out, "", overall);
+        for (Map.Entry<Subscriber, Histogram> entry : perClient.entrySet()) {
+            writeSummary(out, "client=\"" + entry.getKey() + "\"", entry.getValue());
+        }
+    }
+
+    /**
+     * Appends the quantiles and the count of a histogram.
+     *
+     * @param out the builder receiving the metrics.
+     * @param labels the labels of the series, empty for none.
+     * @param histogram the latencies, in nanoseconds.
+     */
+    private static void writeSummary(StringBuilder out, String labels, Histogram histogram) {
+        String separator = labels.isEmpty() ? "" : ",";
+        for (double quantile : QUANTILES) {
+            out.append("auction_purchase_latency_seconds{").append(labels).append(separator)
+                    .append("quantile=\"").append(quantile).append("\"} ")
+                    .append(histogram.valueAtPercentile(quantile * 100) / 1e9).append('\n');
+        }
+        out.append("auction_purchase_latency_seconds_count");
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(histogram.count()).append('\n');
+    }
+}
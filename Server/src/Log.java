@@ -0,0 +1,375 @@
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@code Log} writes the console messages of the application from a background thread.
+ *
+ * <p>A message is a format with {@code {}} placeholders and up to three arguments. Logging a message only
+ * copies the format and the arguments into a pre-allocated slot of a ring buffer: numbers are passed as
+ * {@code long} and never boxed, and the message is formatted by the writer thread, so a call allocates nothing.
+ * Calls below the level set with the {@code log.level} system property ({@code INFO}, {@code WARN} or
+ * {@code OFF}) return immediately. When the writer falls behind and the buffer, sized with
+ * {@code log.bufferSize}, is full, messages are dropped and counted instead of blocking the caller.</p>
+ *
+ * <p>Producers claim slots with a compare-and-set on a shared sequence and publish them by writing the slot
+ * sequence last; the single writer thread consumes the slots in order. Pending messages are written when
+ * the JVM exits.</p>
+ */
+public final class Log {
+
+    /**
+     * The importance of a message.
+     */
+    public enum Level {
+        /** Normal activity. */
+        INFO,
+        /** Failures and unexpected input. */
+        WARN,
+        /** Used as threshold only, to switch logging off. */
+        OFF
+    }
+
+    /** The lowest level written. */
+    private static final Level threshold = Level.valueOf(System.getProperty("log.level", "INFO").toUpperCase(Locale.ROOT));
+
+    /** The placeholder replaced by an argument. */
+    private static final String PLACEHOLDER = "{}";
+
+    /** The time the writer thread parks when there is nothing to write, in nanoseconds. */
+    private static final long IDLE_PARK_NANOS = 1_000_000;
+
+    /** The ring buffer of messages; its size is a power of two. */
+    private static final Slot[] slots;
+
+    /** Mask turning a sequence into a slot index. */
+    private static final int mask;
+
+    /** The next sequence to claim by a producer. */
+    private static final AtomicLong claimed = new AtomicLong();
+
+    /** The next sequence to write. Only written by the writer thread. */
+    private static volatile long consumed;
+
+    /** The number of messages dropped because the buffer was full. */
+    private static final LongAdder dropped = new LongAdder();
+
+    /** A flag to control the running state of the writer thread. */
+    private static volatile boolean running = true;
+
+    /** The thread formatting and writing the messages. */
+    private static final Thread writer;
+
+    static {
+        int size = Integer.highestOneBit(Math.max(2, Integer.getInteger("log.bufferSize", 8192) - 1)) << 1;
+        slots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot(i - size);
+        }
+        mask = size - 1;
+
+        writer = new Thread(Log::drain, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+
+        //writes the pending messages when the JVM exits
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            running = false;
+            LockSupport.unpark(writer);
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "log-flush"));
+    }
+
+    /**
+     * A {@code Slot} holds one message between the producer and the writer thread.
+     */
+    private static final class Slot {
+        private volatile long sequence; /** The sequence of the message, written last to publish it. */
+
+        private Level level; /** The level of the message. */
+
+        private String format; /** The format of the message. */
+
+        private int argumentCount; /** The number of arguments. */
+
+        private int longArguments; /** Bit {@code i} is set if argument {@code i} is in {@link #longs}. */
+
+        private final Object[] objects = new Object[3]; /** The object arguments. */
+
+        private final long[] longs = new long[3]; /** The number arguments. */
+
+        private Slot(long sequence) {
+            this.sequence = sequence;
+        }
+    }
+
+    private Log() {
+    }
+
+    /**
+     * Tells whether messages of a level are written, to skip building expensive arguments.
+     *
+     * @param level the level.
+     * @return {@code true} if messages of that level are written.
+     */
+    public static boolean isEnabled(Level level) {
+        return level != Level.OFF && level.compareTo(threshold) >= 0;
+    }
+
+    /**
+     * Logs an informational message.
+     *
+     * @param message the message.
+     */
+    public static void info(String message) {
+        log(Level.INFO, message, 0, 0, null, 0, null, 0, null, 0);
+    }
+
+    /**
+     * Logs an informational message with one argument.
+     *
+     * @param format the format of the message.
+     * @param a the argument.
+     */
+    public static void info(String format, Object a) {
+        log(Level.INFO, format, 1, 0, a, 0, null, 0, null, 0);
+    }
+
+    /**
+     * Logs an informational message with one argument.
+     *
+     * @param format the format of the message.
+     * @param a the argument.
+     */
+    public static void info(String format, long a) {
+        log(Level.INFO, format, 1, 0b001, null, a, null, 0, null, 0);
+    }
+
+    /**
+     * Logs an informational message with two arguments.
+     *
+     * @param format the format of the message.
+     * @param a the first argument.
+     * @param b the second argument.
+     */
+    public static void info(String format, Object a, Object b) {
+        log(Level.INFO, format, 2, 0, a, 0, b, 0, null, 0);
+    }
+
+    /**
+     * Logs an informational message with two arguments.
+     *
+     * @param format the format of the message.
+     * @param a the first argument.
+     * @param b the second argument.
+     */
+    public static void info(String format, long a, Object b) {
+        log(Level.INFO, format, 2, 0b001, null, a, b, 0, null, 0);
+    }
+
+    /**
+     * Logs an informational message with two arguments.
+     *
+     * @param format the format of the message.
+     * @param a the first argument.
+     * @param b the second argument.
+     */
+    public static void info(String format, Object a, long b) {
+        log(Level.INFO, format, 2, 0b010, a, 0, null, b, null, 0);
+    }
+
+    /**
+     * Logs an informational message with two arguments.
+     *
+     * @param format the format of the message.
+     * @param a the first argument.
+     * @param b the second argument.
+     */
+    public static void info(String format, long a, long b) {
+        log(Level.INFO, format, 2, 0b011, null, a, null, b, null, 0);
+    }
+
+    /**
+     * Logs an informational message with three arguments.
+     *
+     * @param format the format of the message.
+     * @param a the first argument.
+     * @param b the second argument.
+     * @param c the third argument.
+     */
+    public static void info(String format, Object a, long b, long c) {
+        log(Level.INFO, format, 3, 0b110, a, 0, null, b, null, c);
+    }
+
+    /**
+     * Logs an informational message with three arguments.
+     *
+     * @param format the format of the message.
+     * @param a the first argument.
+     * @param b the second argument.
+     * @param c the third argument.
+     */
+    public static void info(String format, long a, long b, Object c) {
+        log(Level.INFO, format, 3, 0b011, null, a, null, b, c, 0);
+    }
+
+    /**
+     * Logs a warning.
+     *
+     * @param message the message.
+     */
+    public static void warn(String message) {
+        log(Level.WARN, message, 0, 0, null, 0, null, 0, null, 0);
+    }
+
+    /**
+     * Logs a warning with one argument.
+     *
+     * @param format the format of the message.
+     * @param a the argument.
+     */
+    public static void warn(String format, Object a) {
+        log(Level.WARN, format, 1, 0, a, 0, null, 0, null, 0);
+    }
+
+    /**
+     * Logs a warning with two arguments.
+     *
+     * @param format the format of the message.
+     * @param a the first argument.
+     * @param b the second argument.
+     */
+    public static void warn(String format, Object a, Object b) {
+        log(Level.WARN, format, 2, 0, a, 0, b, 0, null, 0);
+    }
+
+    /**
+     * Logs a warning with two arguments.
+     *
+     * @param format the format of the message.
+     * @param a the first argument.
+     * @param b the second argument.
+     */
+    public static void warn(String format, long a, Object b) {
+        log(Level.WARN, format, 2, 0b001, null, a, b, 0, null, 0);
+    }
+
+    /**
+     * Logs a warning with two arguments.
+     *
+     * @param format the format of the message.
+     * @param a the first argument.
+     * @param b the second argument.
+     */
+    public static void warn(String format, Object a, long b) {
+        log(Level.WARN, format, 2, 0b010, a, 0, null, b, null, 0);
+    }
+
+    /**
+     * Copies a message into the next free slot, or counts it as dropped if the buffer is full.
+     */
+    private static void log(Level level, String format, int argumentCount, int longArguments,
+                            Object o0, long l0, Object o1, long l1, Object o2, long l2) {
+        if (level.compareTo(threshold) < 0) {
+            return;
+        }
+
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - consumed >= slots.length) {
+                dropped.increment();
+                return;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+        Slot slot = slots[(int) sequence & mask];
+        slot.level = level;
+        slot.format = format;
+        slot.argumentCount = argumentCount;
+        slot.longArguments = longArguments;
+        slot.objects[0] = o0;
+        slot.objects[1] = o1;
+        slot.objects[2] = o2;
+        slot.longs[0] = l0;
+        slot.longs[1] = l1;
+        slot.longs[2] = l2;
+
+        //publishes the message to the writer thread
+        slot.sequence = sequence;
+    }
+
+    /**
+     * Formats and writes the published messages in order until the JVM exits. Runs on the writer thread.
+     */
+    private static void drain() {
+        StringBuilder line = new StringBuilder(256);
+        long next = consumed;
+        long reportedDrops = 0;
+        while (true) {
+            PrintStream out = System.out;
+            boolean wrote = false;
+            Slot slot;
+            while ((slot = slots[(int) next & mask]).sequence == next) {
+                line.setLength(0);
+                format(slot, line);
+                line.append(System.lineSeparator());
+                out.append(line);
+                wrote = true;
+
+                slot.objects[0] = null;
+                slot.objects[1] = null;
+                slot.objects[2] = null;
+                consumed = ++next;
+            }
+
+            long drops = dropped.sum();
+            if (drops != reportedDrops) {
+                out.println((drops - reportedDrops) + " log messages dropped");
+                reportedDrops = drops;
+                wrote = true;
+            }
+            if (wrote) {
+                out.flush();
+            } else if (!running) {
+                return;
+            } else {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    /**
+     * Formats a message, replacing each placeholder with the next argument.
+     *
+     * @param slot the slot holding the message.
+     * @param line the builder receiving the message.
+     */
+    private static void format(Slot slot, StringBuilder line) {
+        if (slot.level == Level.WARN) {
+            line.append("WARN ");
+        }
+        String format = slot.format;
+        int start = 0;
+        for (int i = 0; i < slot.argumentCount; i++) {
+            int placeholder = format.indexOf(PLACEHOLDER, start);
+            if (placeholder < 0) {
+                break;
+            }
+            line.append(format, start, placeholder);
+            if ((slot.longArguments & (1 << i)) != 0) {
+                line.append(slot.longs[i]);
+            } else {
+                line.append(slot.objects[i]);
+            }
+            start = placeholder + PLACEHOLDER.length();
+        }
+        line.append(format, start, format.length());
+    }
+}
@@ -0,0 +1,148 @@
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@code Lot} is a single auction with its own stream of prices and its own subscribers.
+ *
+ * <p>Lots are driven by the {@link AuctionEngine}: every {@link #interval()} ticks of the engine the lot
+ * generates a new price and sends it to the clients subscribed to it, so the cost of a broadcast grows with
+ * the number of subscribers of the lot rather than with the total number of clients.</p>
+ *
+ * <p>The subscribers are kept by the {@link BroadcastShard}s owning them. A price is encoded once and published to
+ * the {@link TickRing}, from which every shard sends it to its subscribers on its own thread.</p>
+ */
+public class Lot {
+
+    /** The identifier of the lot. Lot 0 is the default auction every client is subscribed to when it connects. */
+    private final int id;
+
+    /** The number of engine ticks between two prices of this lot. */
+    private final int interval;
+
+    /** The random prices of this lot. Only accessed by the engine thread. */
+    private final PriceSource prices;
+
+    /** The shards keeping the subscribers of this lot. */
+    private final BroadcastShard[] shards;
+
+    /** The ring the prices are published to. Only accessed by the engine thread, which is its producer. */
+    private final TickRing ring;
+
+    /**
+     * The number of subscriptions to this lot: counted when a client subscribes, and uncounted by its shard when
+     * the shard drops a subscription, so that a price is never left unencoded for a shard that has not handled a
+     * subscription yet.
+     */
+    private final AtomicInteger subscribers = new AtomicInteger();
+
+    /** The sequence number of the latest tick in the high half and its price in the low half, or -1 before the first price. */
+    private volatile long latestTick = -1;
+
+    /** The next lot in the same {@link TimerWheel} slot. Only accessed by the engine thread. */
+    Lot next;
+
+    /** The number of wheel revolutions left before this lot is due. Only accessed by the engine thread. */
+    long rounds;
+
+    /**
+     * Constructs a {@code Lot}.
+     *
+     * @param id the identifier of the lot.
+     * @param interval the number of engine ticks between two prices, at least 1.
+     * @param prices the source of the prices of this lot, not shared with other lots.
+     * @param shards the shards of the server, indexed by {@link BroadcastShard#index()}.
+     * @param ring the ring the shards read the prices from.
+     */
+    public Lot(int id, int interval, PriceSource prices, BroadcastShard[] shards, TickRing ring) {
+        this.id = id;
+        this.interval = interval;
+        this.prices = prices;
+        this.shards = shards;
+        this.ring = ring;
+    }
+
+    /**
+     * Gets the identifier of the lot.
+     *
+     * @return the identifier.
+     */
+    public int id() {
+        return id;
+    }
+
+    /**
+     * Gets the number of engine ticks between two prices of this lot.
+     *
+     * @return the interval in ticks.
+     */
+    public int interval() {
+        return interval;
+    }
+
+    /**
+     * Subscribes a client to this lot, through its shard. The client receives the prices generated after this
+     * call; subscribing twice has no effect.
+     *
+     * @param subscriber the client.
+     */
+    public void subscribe(Subscriber subscriber) {
+        subscribers.incrementAndGet();
+        BroadcastShard.of(shards, subscriber).subscribe(this, subscriber);
+    }
+
+    /**
+     * Unsubscribes a client from this lot.
+     *
+     * @param subscriber the client.
+     */
+    public void unsubscribe(Subscriber subscriber) {
+        BroadcastShard.of(shards, subscriber).unsubscribe(this, subscriber);
+    }
+
+    /**
+     * Uncounts a subscription to this lot that a shard dropped: a client unsubscribed, or subscribed twice.
+     * Called by the thread of the shard.
+     */
+    void dropped() {
+        subscribers.decrementAndGet();
+    }
+
+    /**
+     * Generates the next price of this lot, a random price between 10 and 100.
+     *
+     * @return the price.
+     */
+    int nextPrice() {
+        //generates int between 10 and 100
+        int price = prices.nextPrice(10, 100);
+        Log.info("Offered price: {} on lot {}", price, id);
+        return price;
+    }
+
+    /**
+     * Finds the tick a purchase request answers when the request does not name it.
+     *
+     * @param price the price the request answers, or {@link MatchingEngine#CURRENT_PRICE}.
+     * @return the sequence number of the latest tick if it offered that price, {@link LatencyTracker#NO_SEQUENCE} otherwise.
+     */
+    int sequenceOf(int price) {
+        long tick = latestTick;
+        if (tick < 0 || (price != MatchingEngine.CURRENT_PRICE && price != (int) tick)) {
+            return LatencyTracker.NO_SEQUENCE;
+        }
+        return (int) (tick >>> 32);
+    }
+
+    /**
+     * Sends a price to the subscribers of this lot: publishes it to the ring, from which every shard sends it on
+     * its own thread. The price is encoded once, and only if someone is subscribed.
+     *
+     * @param price the offered price.
+     * @param sequence the sequence number of the tick, never negative.
+     */
+    void broadcast(int price, int sequence) {
+        latestTick = (long) sequence << 32 | (price & 0xffffffffL);
+        PriceFrame frame = subscribers.get() > 0 ? new PriceFrame(id, price, sequence) : null;
+        ring.claim().set(this, frame);
+        ring.publish();
+    }
+}
@@ -0,0 +1,423 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The {@code MatchingEngine} arbitrates the purchase requests of the clients against the prices of each {@link Lot}.
+ *
+ * <p>Each price of a lot opens a new round with a limited inventory. A purchase request names the lot and the
+ * price it answers; it is rejected if that price is no longer the current one or if the bid is below it.
+ * With the {@link Policy#FIRST_COME} policy the first requests of a round are filled as they arrive, with
+ * {@link Policy#HIGHEST_BID} the requests of a round are collected and the highest bids are filled when the
+ * next price of the lot opens a new round.</p>
+ *
+ * <p>Lots are partitioned over a fixed set of {@link Matcher} threads. Each matcher is the only thread that
+ * reads or writes the books of its lots, so matching needs no locks and its throughput grows with the number of
+ * matchers. A matcher receives its work through a bounded ring of {@link Order} slots allocated once: a
+ * submitting thread claims a slot with one atomic increment, fills it and publishes it, and the matcher hands
+ * the slot back once handled, so submitting a request allocates nothing. A submitting thread only waits when
+ * its matcher is a whole ring behind.</p>
+ */
+public class MatchingEngine {
+
+    /**
+     * How the inventory of a round is shared between competing purchase requests.
+     */
+    public enum Policy {
+        /** Requests are filled in the order they arrive until the inventory runs out. */
+        FIRST_COME,
+        /** Requests are collected for the whole round and the highest bids are filled. */
+        HIGHEST_BID
+    }
+
+    /** Price given to requests that do not name the price they answer: they apply to the current price of the lot. */
+    public static final int CURRENT_PRICE = -1;
+
+    /** The matchers, lot {@code id} belongs to matcher {@code id % matchers.length}. */
+    private final Matcher[] matchers;
+
+    /** The threads running the matchers. */
+    private final Thread[] threads;
+
+    /**
+     * Constructs a {@code MatchingEngine}. The matchers start with {@link #start()}.
+     *
+     * @param lotCount the number of lots.
+     * @param matcherCount the number of matcher threads.
+     * @param queueSize the number of orders that can wait for each matcher, rounded up to a power of two.
+     * @param inventory the number of units sold per round, or 0 for an unlimited inventory.
+     * @param policy how the inventory of a round is shared.
+     * @param journal the journal persisting the filled purchases, {@code null} to not persist them.
+     */
+    public MatchingEngine(int lotCount, int matcherCount, int queueSize, int inventory, Policy policy, TradeJournal journal) {
+        int count = Math.max(1, Math.min(lotCount, matcherCount));
+        matchers = new Matcher[count];
+        threads = new Thread[count];
+        for (int i = 0; i < count; i++) {
+            matchers[i] = new Matcher((lotCount + count - 1 - i) / count, count, queueSize, inventory, policy, journal);
+            threads[i] = new Thread(matchers[i], "matcher-" + i);
+            matchers[i].thread = threads[i];
+        }
+    }
+
+    /**
+     * Starts the matcher threads.
+     */
+    public void start() {
+        for (Thread thread : threads) {
+            thread.start();
+        }
+    }
+
+    /**
+     * Stops the matcher threads once they have handled the work already queued.
+     */
+    public void shutdown() {
+        for (Matcher matcher : matchers) {
+            matcher.running = false;
+            LockSupport.unpark(matcher.thread);
+        }
+    }
+
+    /**
+     * Waits for the matcher threads to stop after {@link #shutdown()}.
+     *
+     * @throws InterruptedException if the calling thread is interrupted while waiting.
+     */
+    public void awaitTermination() throws InterruptedException {
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    /**
+     * Waits until the matchers have handled every order submitted before the call, or have stopped.
+     */
+    public void awaitDrained() {
+        for (Matcher matcher : matchers) {
+            long submitted = matcher.claimed.get();
+            while (matcher.handled.get() < submitted && matcher.thread.getState() != Thread.State.TERMINATED) {
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * Opens a new round for a lot. Called by the price generator before the price is sent to the clients,
+     * so that a matcher always learns about a price before the requests answering it.
+     *
+     * @param lot the identifier of the lot.
+     * @param price the new price of the lot.
+     */
+    public void open(int lot, int price) {
+        matcherOf(lot).submit(lot, price, 0, null, false);
+    }
+
+    /**
+     * Submits a purchase request. Called by the threads serving the clients.
+     *
+     * @param lot the identifier of the lot.
+     * @param price the price the request answers, or {@link #CURRENT_PRICE}.
+     * @param bid the highest price the client is willing to pay.
+     * @param subscriber the client.
+     * @param reply whether the client expects a fill or reject reply.
+     */
+    public void purchase(int lot, int price, int bid, Subscriber subscriber, boolean reply) {
+        matcherOf(lot).submit(lot, price, bid, subscriber, reply);
+    }
+
+    /**
+     * Finds the matcher owning a lot.
+     *
+     * @param lot the identifier of the lot, known to be valid.
+     * @return the matcher.
+     */
+    private Matcher matcherOf(int lot) {
+        return matchers[lot % matchers.length];
+    }
+
+    /**
+     * An {@code Order} is a purchase request, or the opening of a round when it has no subscriber. Orders are
+     * slots reused for one request after another, either in the ring of a matcher or in the bids of a round.
+     */
+    private static final class Order {
+        private int lot; /** The identifier of the lot. */
+
+        private int price; /** The price answered, or the price of the round being opened. */
+
+        private int bid; /** The highest price the client is willing to pay. */
+
+        private Subscriber subscriber; /** The client, {@code null} for the opening of a round. */
+
+        private boolean reply; /** Whether the client expects a reply. */
+
+        private volatile long sequence = -1; /** The sequence of the order in the ring, written once it is filled. */
+
+        private void set(int lot, int price, int bid, Subscriber subscriber, boolean reply) {
+            this.lot = lot;
+            this.price = price;
+            this.bid = bid;
+            this.subscriber = subscriber;
+            this.reply = reply;
+        }
+    }
+
+    /**
+     * A {@code Book} is the state of the current round of a lot. Only accessed by its matcher thread.
+     */
+    private static final class Book {
+        private boolean open; /** Whether a price has been offered yet. */
+
+        private int price; /** The current price of the lot. */
+
+        private int remaining; /** The units left in this round, for the first-come policy. */
+
+        private final List<Order> bids = new ArrayList<>(); /** The valid requests of this round by decreasing bid, for the highest-bid policy. */
+
+        private PriceFrame filled; /** The reply to the filled requests of this round, encoded for the first one. */
+
+        private PriceFrame rejected; /** The reply to the rejected requests at the price of this round, encoded for the first one. */
+    }
+
+    /**
+     * A {@code Matcher} owns the books of a subset of the lots and is the single thread writing them.
+     */
+    private static final class Matcher implements Runnable {
+        private final Order[] orders; /** The ring of the work submitted by other threads, allocated once. */
+
+        private final int mask; /** The mask turning a sequence into an index of {@link #orders}. */
+
+        private final AtomicLong claimed = new AtomicLong(-1); /** The sequence of the last order claimed by a producer. */
+
+        private final TickRing.Sequence handled = new TickRing.Sequence(); /** The sequence of the last order handled, whose slot is free again. */
+
+        private long next; /** The sequence of the next order to handle. Only accessed by the matcher. */
+
+        private final List<Order> spare = new ArrayList<>(); /** The orders copied into the bids once, free for the next bids. */
+
+        private final Book[] books; /** The books of the owned lots, lot {@code id} is at {@code id / stride}. */
+
+        private final int stride; /** The number of matchers. */
+
+        private final int inventory; /** The units sold per round, 0 for unlimited. */
+
+        private final Policy policy; /** How the inventory of a round is shared. */
+
+        private final TradeJournal journal; /** The journal of the filled purchases, {@code null} if not persisted. */
+
+        private Thread thread; /** The thread running this matcher. */
+
+        private volatile boolean waiting; /** Set while the matcher is about to park or parked. */
+
+        private volatile boolean running = true; /** Cleared to stop the matcher. */
+
+        private Matcher(int lotCount, int stride, int queueSize, int inventory, Policy policy, TradeJournal journal) {
+            int size = Integer.highestOneBit(Math.max(2, queueSize) * 2 - 1);
+            this.orders = new Order[size];
+            this.mask = size - 1;
+            for (int i = 0; i < size; i++) {
+                orders[i] = new Order();
+            }
+            this.books = new Book[lotCount];
+            for (int i = 0; i < lotCount; i++) {
+                books[i] = new Book();
+            }
+            this.stride = stride;
+            this.inventory = inventory;
+            this.policy = policy;
+            this.journal = journal;
+        }
+
+        /**
+         * Queues an order in the next slot of the ring and wakes the matcher if it is parked. Waits while the
+         * matcher is a whole ring behind; the order is dropped if the matcher has already stopped.
+         *
+         * @param lot the identifier of the lot.
+         * @param price the price answered, or the price of the round being opened.
+         * @param bid the highest price the client is willing to pay.
+         * @param subscriber the client, {@code null} to open a round.
+         * @param reply whether the client expects a reply.
+         */
+        private void submit(int lot, int price, int bid, Subscriber subscriber, boolean reply) {
+            long sequence = claimed.incrementAndGet();
+            //the slot is free once the order a whole ring before is handled
+            while (sequence - orders.length > handled.get()) {
+                if (thread.getState() == Thread.State.TERMINATED) {
+                    return;
+                }
+                LockSupport.parkNanos(1);
+            }
+            Order order = orders[(int) sequence & mask];
+            order.set(lot, price, bid, subscriber, reply);
+            order.sequence = sequence;
+            if (waiting) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        /**
+         * Tells whether the next order has been published to the matcher.
+         *
+         * @return {@code true} if {@link #orders} holds the order of sequence {@link #next}.
+         */
+        private boolean available() {
+            return orders[(int) next & mask].sequence == next;
+        }
+
+        /**
+         * Handles the queued orders, parking when there is nothing to do. Once stopped and drained, settles the
+         * requests still collected by the open rounds, so that every client gets its reply.
+         */
+        @Override
+        public void run() {
+            while (running || available()) {
+                if (!available()) {
+                    //announces the park before checking the ring again, so that a producer either sees
+                    //the flag and unparks, or its order is seen here
+                    waiting = true;
+                    if (!available() && running) {
+                        LockSupport.park(this);
+                    }
+                    waiting = false;
+                    continue;
+                }
+                Order order = orders[(int) next & mask];
+                if (order.subscriber == null) {
+                    openRound(books[order.lot / stride], order.price);
+                } else {
+                    match(books[order.lot / stride], order);
+                }
+                order.subscriber = null;
+                handled.set(next++);
+            }
+            for (Book book : books) {
+                settleBids(book);
+            }
+        }
+
+        /**
+         * Closes the current round of a lot and opens the next one.
+         *
+         * @param book the book of the lot.
+         * @param price the new price.
+         */
+        private void openRound(Book book, int price) {
+            settleBids(book);
+            book.open = true;
+            book.price = price;
+            book.remaining = inventory;
+            book.filled = null;
+            book.rejected = null;
+        }
+
+        /**
+         * Fills the highest bids collected by the current round of a lot and rejects the others. Only the
+         * highest-bid policy collects bids.
+         *
+         * @param book the book of the lot.
+         */
+        private void settleBids(Book book) {
+            for (int i = 0; i < book.bids.size(); i++) {
+                Order order = book.bids.get(i);
+                settle(order, inventory == 0 || i < inventory);
+                order.subscriber = null;
+                spare.add(order);
+            }
+            book.bids.clear();
+        }
+
+        /**
+         * Collects a valid request in the current round of a lot. The slot of the request goes back to the ring,
+         * so the request is copied into a spare order, and inserted after the bids it does not beat, so that the
+         * bids stay by decreasing bid and equal bids keep their arrival order.
+         *
+         * @param book the book of the lot.
+         * @param order the purchase request.
+         */
+        private void collect(Book book, Order order) {
+            Order copy = spare.isEmpty() ? new Order() : spare.remove(spare.size() - 1);
+            copy.set(order.lot, order.price, order.bid, order.subscriber, order.reply);
+            int low = 0;
+            int high = book.bids.size();
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (book.bids.get(middle).bid >= copy.bid) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            book.bids.add(low, copy);
+        }
+
+        /**
+         * Matches a purchase request against the current round of its lot.
+         *
+         * @param book the book of the lot.
+         * @param order the purchase request.
+         */
+        private void match(Book book, Order order) {
+            int price = order.price == CURRENT_PRICE ? book.price : order.price;
+            int bid = order.price == CURRENT_PRICE ? book.price : order.bid;
+            if (!book.open || price != book.price || bid < price) {
+                settle(order, false);
+            } else if (policy == Policy.HIGHEST_BID) {
+                collect(book, order);
+            } else if (inventory == 0) {
+                settle(order, true);
+            } else if (book.remaining > 0) {
+                book.remaining--;
+                settle(order, true);
+            } else {
+                settle(order, false);
+            }
+        }
+
+        /**
+         * Reports the outcome of a purchase request and replies to the client if it expects it.
+         *
+         * @param order the purchase request.
+         * @param filled whether the purchase is filled.
+         */
+        private void settle(Order order, boolean filled) {
+            Book book = books[order.lot / stride];
+            if (filled) {
+                if (journal != null) {
+                    journal.record(order.lot, book.price, order.price == CURRENT_PRICE ? book.price : order.bid, order.subscriber.id());
+                }
+                Log.info("Sold lot {} at {} to {}", order.lot, book.price, order.subscriber);
+            }
+            if (order.reply) {
+                int price = order.price == CURRENT_PRICE ? book.price : order.price;
+                order.subscriber.send(reply(book, order.lot, price, filled));
+            }
+        }
+
+        /**
+         * Gets the reply to a purchase request. The replies at the price of the round are shared by every request
+         * of the round, as the offers are, so that a busy round does not encode the same reply for each client.
+         *
+         * @param book the book of the lot.
+         * @param lot the lot of the request.
+         * @param price the price the request answered.
+         * @param filled whether the purchase is filled.
+         * @return the encoded reply.
+         */
+        private static PriceFrame reply(Book book, int lot, int price, boolean filled) {
+            if (price != book.price) {
+                return filled ? PriceFrame.filled(lot, price) : PriceFrame.rejected(lot, price);
+            }
+            if (filled) {
+                if (book.filled == null) {
+                    book.filled = PriceFrame.filled(lot, price);
+                }
+                return book.filled;
+            }
+            if (book.rejected == null) {
+                book.rejected = PriceFrame.rejected(lot, price);
+            }
+            return book.rejected;
+        }
+    }
+}
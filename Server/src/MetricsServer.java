@@ -0,0 +1,72 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+/**
+ * The {@code MetricsServer} serves the metrics of the {@link Server} over HTTP for scraping.
+ *
+ * <p>{@code GET /metrics} returns the metrics in the Prometheus text exposition format. The server listens on
+ * the loopback interface only and answers from a single thread, so a scrape never competes with the auction
+ * threads for more than one core.</p>
+ */
+public class MetricsServer {
+
+    /** The path of the metrics. */
+    private static final String PATH = "/metrics";
+
+    /** The HTTP server. */
+    private final HttpServer http;
+
+    /** Writes the current metrics. */
+    private final Consumer<StringBuilder> metrics;
+
+    /**
+     * Constructs a {@code MetricsServer} and starts listening.
+     *
+     * @param port the local port to listen on.
+     * @param metrics appends the current metrics to a builder; called once per scrape.
+     * @throws IOException if the port cannot be bound.
+     */
+    public MetricsServer(int port, Consumer<StringBuilder> metrics) throws IOException {
+        this.metrics = metrics;
+        this.http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        http.createContext(PATH, this::handle);
+        http.start();
+    }
+
+    /**
+     * Answers a scrape.
+     *
+     * @param exchange the request and its response.
+     * @throws IOException if the response cannot be written.
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            StringBuilder body = new StringBuilder(4096);
+            metrics.accept(body);
+            byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+    }
+
+    /**
+     * Stops serving the metrics.
+     */
+    public void stop() {
+        http.stop(0);
+    }
+}
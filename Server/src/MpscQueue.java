@@ -0,0 +1,87 @@
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An unbounded, lock-free queue with many producers and a single consumer.
+ *
+ * <p>Producers link a new node with a single atomic swap of the tail and never wait for each other or for the
+ * consumer. Only one thread may call {@link #poll()}, {@link #peek()} and {@link #isEmpty()}, which lets the
+ * consumer side work without any atomic operation.</p>
+ *
+ * @param <E> the type of the queued elements.
+ */
+public class MpscQueue<E> {
+
+    /**
+     * A link of the queue.
+     *
+     * @param <E> the type of the queued element.
+     */
+    private static final class Node<E> {
+        private E value; /** The element, cleared once consumed. */
+
+        private volatile Node<E> next; /** The next node, published by the producer that added it. */
+
+        private Node(E value) {
+            this.value = value;
+        }
+    }
+
+    /** The last node, swapped by producers. */
+    private final AtomicReference<Node<E>> tail;
+
+    /** The node before the first element. Only accessed by the consumer. */
+    private Node<E> head;
+
+    /**
+     * Constructs an empty queue.
+     */
+    public MpscQueue() {
+        head = new Node<>(null);
+        tail = new AtomicReference<>(head);
+    }
+
+    /**
+     * Adds an element at the end of the queue. Safe to call from any thread.
+     *
+     * @param value the element, not {@code null}.
+     */
+    public void offer(E value) {
+        Node<E> node = new Node<>(value);
+        tail.getAndSet(node).next = node;
+    }
+
+    /**
+     * Removes the first element. Only called by the consumer thread.
+     *
+     * @return the first element, or {@code null} if the queue is empty or the next element is still being linked.
+     */
+    public E poll() {
+        Node<E> next = head.next;
+        if (next == null) {
+            return null;
+        }
+        E value = next.value;
+        next.value = null;
+        head = next;
+        return value;
+    }
+
+    /**
+     * Gets the first element without removing it. Only called by the consumer thread.
+     *
+     * @return the first element, or {@code null} if {@link #poll()} would return {@code null}.
+     */
+    public E peek() {
+        Node<E> next = head.next;
+        return next == null ? null : next.value;
+    }
+
+    /**
+     * Tells whether there is an element to consume. Only called by the consumer thread.
+     *
+     * @return {@code true} if {@link #poll()} would return {@code null}.
+     */
+    public boolean isEmpty() {
+        return head.next == null;
+    }
+}
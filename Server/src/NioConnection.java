@@ -0,0 +1,443 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * {@code NioConnection} is a non-blocking client connection served by an {@link EventLoop}.
+ *
+ * <p>It speaks the same {@link Protocol} as {@link Server.ClientHandler}: prices are sent as lines and the
+ * client answers with "Purchase request" or "Finished purchasing", or both sides exchange binary frames once
+ * the client asked for them. Reads and writes only happen on the loop thread; other threads queue outbound
+ * prices with {@link #send(PriceFrame)}, and {@link #close()} the connection through the loop.</p>
+ *
+ * <p>Lines are decoded in place in the read buffer. With {@code server.garbageFree}, the read and write buffers
+ * are direct buffers taken from a {@link BufferPool} for the life of the connection, and the queued frames are
+ * copied into the write buffer instead of being handed to a gathering write through views of their own.</p>
+ */
+public class NioConnection implements Subscriber {
+
+    /** The maximum number of frames handed to a single gathering write. */
+    private static final int MAX_WRITE_BATCH = 64;
+
+    /** The encoded acknowledgement of the binary protocol. */
+    private static final byte[] BINARY_HELLO_LINE = Protocol.binaryHelloLine();
+
+    /** The channel connected to the client. */
+    private final SocketChannel channel;
+
+    /** The event loop serving this connection. */
+    private final EventLoop loop;
+
+    /** The number identifying the client. */
+    private final int id;
+
+    /** The remote address of the client, kept for logging after the channel is closed. */
+    private final String remoteAddress;
+
+    /** The pool of the direct buffers of the connection, {@code null} to use heap buffers and gathering writes. */
+    private final BufferPool pool;
+
+    /** Buffer for the bytes read from the client. */
+    private final ByteBuffer readBuffer;
+
+    /** The last line read, decoded in place. Only accessed by the loop thread. */
+    private final Protocol.Request request = new Protocol.Request();
+
+    /** Prices and replies waiting to be written to the client, bounded by the backpressure policy. */
+    private final OutboundQueue outbound;
+
+    /** Frames taken from {@link #outbound} for the current gathering write; the first one may be partially written. */
+    private final ByteBuffer[] writeBatch = new ByteBuffer[MAX_WRITE_BATCH];
+
+    /** The number of frames in {@link #writeBatch}. */
+    private int writeBatchSize;
+
+    /** The bytes waiting to be written when the frames are copied, {@code null} without a {@link #pool}. */
+    private final ByteBuffer writeBuffer;
+
+    /** A frame taken from {@link #outbound} that did not fit in {@link #writeBuffer} yet. */
+    private PriceFrame pendingFrame;
+
+    /** Set while this connection is queued for a flush on its event loop. */
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    /** The registration of the channel with the loop selector, {@code null} until attached. */
+    private SelectionKey key;
+
+    /** Whether the client sends binary frames. Only accessed by the loop thread. */
+    private boolean binaryIn;
+
+    /** Whether the binary acknowledgement still has to be written. Only accessed by the loop thread. */
+    private boolean binaryAckPending;
+
+    /** Whether prices are written as binary frames. Only accessed by the loop thread. */
+    private boolean binaryOut;
+
+    /** The state of the client in the {@link Server.ConnectedClients} count. Only accessed by the loop thread. */
+    private Server.ConnectedClients.State state = Server.ConnectedClients.State.CONNECTING;
+
+    /** Whether the connection has been closed. Only accessed by the loop thread. */
+    private boolean closed;
+
+    /**
+     * Constructs a {@code NioConnection} for an accepted channel.
+     *
+     * @param id the number identifying the client.
+     * @param channel the channel connected to the client, in non-blocking mode.
+     * @param loop the event loop that will serve the connection.
+     * @param outbound the queue of the frames waiting to be written.
+     * @param pool the pool to take the buffers from, or {@code null} to allocate heap buffers.
+     */
+    public NioConnection(int id, SocketChannel channel, EventLoop loop, OutboundQueue outbound, BufferPool pool) {
+        this.id = id;
+        this.channel = channel;
+        this.loop = loop;
+        this.outbound = outbound;
+        this.pool = pool;
+        this.readBuffer = pool == null ? ByteBuffer.allocate(1024) : pool.acquire();
+        this.writeBuffer = pool == null ? null : pool.acquire();
+        this.remoteAddress = String.valueOf(channel.socket().getRemoteSocketAddress());
+    }
+
+    /**
+     * Registers the channel with the selector of the loop. Called on the loop thread.
+     *
+     * @param selector the selector of the loop.
+     */
+    void attach(Selector selector) {
+        //a connection closed before it was registered is already disconnected
+        if (closed) {
+            return;
+        }
+        try {
+            key = channel.register(selector, SelectionKey.OP_READ, this);
+            moveTo(Server.ConnectedClients.State.ACTIVE);
+            //prices may have been queued before the registration completed
+            flush();
+        } catch (IOException e) {
+            disconnect();
+        }
+    }
+
+    /**
+     * Returns the number identifying the client.
+     *
+     * @return the identifier given when the connection was accepted.
+     */
+    @Override
+    public int id() {
+        return id;
+    }
+
+    /**
+     * Returns the index of the shard of the event loop serving the connection, so that its prices are handed
+     * over by the loop thread.
+     *
+     * @return the index of the shard of the loop.
+     */
+    @Override
+    public int shard() {
+        return loop.shard().index();
+    }
+
+    /**
+     * Queues the shared price frame and asks the loop to write it. If the client lags too far behind, the loop
+     * disconnects it instead.
+     *
+     * @param frame the encoded price offer.
+     */
+    @Override
+    public void send(PriceFrame frame) {
+        if (!outbound.add(frame)) {
+            Log.warn("Disconnecting slow client {}", this);
+        }
+        if (flushScheduled.compareAndSet(false, true)) {
+            loop.requestFlush(this);
+        }
+    }
+
+    /**
+     * Switches the connection to binary frames. Called on the loop thread when the client asks for it.
+     */
+    @Override
+    public void useBinaryProtocol() {
+        binaryIn = true;
+        binaryAckPending = true;
+        flush();
+    }
+
+    /**
+     * Returns the number of prices waiting to be written, including those of an unfinished gathering write.
+     *
+     * @return the outbound backlog.
+     */
+    @Override
+    public int backlog() {
+        return outbound.size() + writeBatchSize + (pendingFrame == null ? 0 : 1);
+    }
+
+    /**
+     * Reads the available bytes and dispatches every complete line or binary frame to the {@link Server}.
+     * Called on the loop thread when the channel is readable.
+     */
+    void onReadable() {
+        if (closed) {
+            return;
+        }
+        int read;
+        try {
+            read = channel.read(readBuffer);
+        } catch (IOException e) {
+            read = -1;
+        }
+        if (read < 0) {
+            disconnect();
+            return;
+        }
+
+        readBuffer.flip();
+        //a dispatched message may close the connection, which gives its buffers back to the pool
+        while (!closed && readBuffer.hasRemaining()) {
+            if (binaryIn ? !readFrame() : !readLine()) {
+                break;
+            }
+        }
+        //keeps an incomplete line or binary frame for the next read
+        if (!closed) {
+            readBuffer.compact();
+        }
+    }
+
+    /**
+     * Consumes one text line if it has been read completely, and dispatches it without copying it out of the
+     * read buffer.
+     *
+     * @return {@code false} if more bytes are needed.
+     */
+    private boolean readLine() {
+        int start = readBuffer.position();
+        int end = Ascii.indexOf(readBuffer, start, readBuffer.limit(), (byte) '\n');
+        if (end < 0) {
+            //a line of the longest length may still be followed by its terminators
+            if (readBuffer.remaining() > Protocol.MAX_LINE_LENGTH + 1) {
+                disconnect();
+            }
+            return false;
+        }
+        int to = end > start && readBuffer.get(end - 1) == '\r' ? end - 1 : end;
+        if (to - start > Protocol.MAX_LINE_LENGTH) {
+            disconnect();
+            return false;
+        }
+
+        //moves past the line first, the dispatch may switch to binary frames or close the connection
+        readBuffer.position(end + 1);
+        if (Protocol.isBinaryHello(readBuffer, start, to)) {
+            Server.useBinaryProtocol(this);
+        } else if (Server.handleLine(readBuffer, start, to, request, this)) {
+            moveTo(Server.ConnectedClients.State.FINISHED);
+            disconnect();
+        }
+        return true;
+    }
+
+    /**
+     * Consumes one binary frame if it has been read completely, and dispatches it.
+     *
+     * @return {@code false} if more bytes are needed.
+     */
+    private boolean readFrame() {
+        int start = readBuffer.position();
+        int length = readBuffer.get(start) & 0xff;
+        if (length == 0) {
+            disconnect();
+            return false;
+        }
+        if (readBuffer.remaining() < 1 + length) {
+            return false;
+        }
+        byte type = readBuffer.get(start + 1);
+
+        //exposes the payload through the read buffer itself, then moves past the frame
+        int limit = readBuffer.limit();
+        readBuffer.limit(start + 1 + length).position(start + 2);
+        boolean finished = Server.handleFrame(type, readBuffer, this);
+        if (closed) {
+            return false;
+        }
+        readBuffer.limit(limit).position(start + 1 + length);
+        if (finished) {
+            moveTo(Server.ConnectedClients.State.FINISHED);
+            disconnect();
+        }
+        return true;
+    }
+
+    /**
+     * Writes as much queued data as the socket accepts, handing several frames to each write. If the socket
+     * buffer is full, the loop is asked to call again once the channel becomes writable. Called on the loop thread.
+     */
+    void flush() {
+        flushScheduled.set(false);
+        if (key == null || closed) {
+            return;
+        }
+        if (outbound.isClosed()) {
+            //the backpressure policy gave up on the client
+            disconnect();
+            return;
+        }
+        try {
+            if (writeBuffer != null) {
+                writeCopies();
+                return;
+            }
+            while (true) {
+                //the acknowledgement goes after the frames already taken and before any binary frame
+                if (binaryAckPending && writeBatchSize < writeBatch.length) {
+                    writeBatch[writeBatchSize++] = ByteBuffer.wrap(BINARY_HELLO_LINE);
+                    binaryAckPending = false;
+                    binaryOut = true;
+                }
+                PriceFrame frame;
+                while (writeBatchSize < writeBatch.length && (frame = outbound.poll()) != null) {
+                    writeBatch[writeBatchSize++] = frame.buffer(binaryOut);
+                }
+                if (writeBatchSize == 0) {
+                    key.interestOps(SelectionKey.OP_READ);
+                    return;
+                }
+
+                Server.metrics().sent(channel.write(writeBatch, 0, writeBatchSize));
+                Server.metrics().flushed();
+
+                //drops the frames written completely and keeps the rest for the next write
+                int written = 0;
+                while (written < writeBatchSize && !writeBatch[written].hasRemaining()) {
+                    written++;
+                }
+                System.arraycopy(writeBatch, written, writeBatch, 0, writeBatchSize - written);
+                Arrays.fill(writeBatch, writeBatchSize - written, writeBatchSize, null);
+                writeBatchSize -= written;
+
+                if (writeBatchSize > 0) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            disconnect();
+        }
+    }
+
+    /**
+     * Copies the queued frames into the write buffer and writes it, as many times as the socket accepts all of it.
+     *
+     * @throws IOException if the channel fails.
+     */
+    private void writeCopies() throws IOException {
+        while (true) {
+            if (pendingFrame != null && pendingFrame.copyTo(writeBuffer, binaryOut)) {
+                pendingFrame = null;
+            }
+            //the acknowledgement goes after the frames already taken and before any binary frame
+            if (pendingFrame == null && binaryAckPending && writeBuffer.remaining() >= BINARY_HELLO_LINE.length) {
+                writeBuffer.put(BINARY_HELLO_LINE);
+                binaryAckPending = false;
+                binaryOut = true;
+            }
+            if (pendingFrame == null && !binaryAckPending) {
+                PriceFrame frame;
+                while ((frame = outbound.poll()) != null) {
+                    if (!frame.copyTo(writeBuffer, binaryOut)) {
+                        pendingFrame = frame;
+                        break;
+                    }
+                }
+            }
+            if (writeBuffer.position() == 0) {
+                key.interestOps(SelectionKey.OP_READ);
+                return;
+            }
+
+            writeBuffer.flip();
+            Server.metrics().sent(channel.write(writeBuffer));
+            Server.metrics().flushed();
+            boolean written = !writeBuffer.hasRemaining();
+            writeBuffer.compact();
+            if (!written) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Closes the channel, gives the buffers back to the pool and notifies the server that the client is gone.
+     * Called on the loop thread; later calls have no effect.
+     */
+    void disconnect() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        outbound.close();
+        Arrays.fill(writeBatch, null);
+        writeBatchSize = 0;
+        pendingFrame = null;
+        if (pool != null) {
+            pool.release(readBuffer);
+            pool.release(writeBuffer);
+        }
+        closeChannel();
+        Server.clientDisconnected(this, state);
+    }
+
+    /**
+     * Moves the client to a new state in the {@link Server.ConnectedClients} count.
+     *
+     * @param next the new state.
+     */
+    private void moveTo(Server.ConnectedClients.State next) {
+        Server.connectedClients().move(state, next);
+        state = next;
+    }
+
+    /**
+     * Closes the connection. Safe to call from any thread: on another thread than the loop, the loop is asked to
+     * disconnect the connection, so that its buffers are given back to the pool once, by the thread using them.
+     */
+    @Override
+    public void close() {
+        if (loop.inLoop()) {
+            disconnect();
+        } else {
+            loop.requestClose(this);
+        }
+    }
+
+    /**
+     * Closes the channel.
+     */
+    private void closeChannel() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.warn("Failed to close connection to client {}: {}", this, e.getMessage());
+        }
+    }
+
+    /**
+     * Returns a description of the connection for logging.
+     *
+     * @return the remote address of the client.
+     */
+    @Override
+    public String toString() {
+        return "NioConnection[" + remoteAddress + "]";
+    }
+}
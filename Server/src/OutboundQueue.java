@@ -0,0 +1,308 @@
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An {@code OutboundQueue} holds the frames waiting to be written to one client and applies the backpressure
+ * policy of the server when the client reads them slower than the prices are generated.
+ *
+ * <p>Price offers are bounded by the capacity of the queue. When an offer arrives while it is full, the
+ * {@link Policy} decides what to give up: the oldest offer or the client itself. With the
+ * {@link Policy#CONFLATE} policy the queue is instead a mailbox holding the newest offer of each lot, so a
+ * lagging client needs no more memory than the number of lots and gets the current prices as soon as it
+ * reads again. Each firing is counted in the {@link ServerMetrics}. Replies to purchase requests are never
+ * dropped: they are kept apart from the offers and are written first. A client that keeps sending requests
+ * without reading the replies is disconnected once its replies reach their own capacity, whatever the policy,
+ * and the disconnection is counted as a firing of {@link Policy#DISCONNECT}.</p>
+ *
+ * <p>Any thread can add frames. A single thread takes them, either waiting with {@link #take()} and
+ * {@link #poll(long)} or polling with {@link #poll()}.</p>
+ */
+public final class OutboundQueue {
+
+    /**
+     * What happens to a client whose queue of offers is full.
+     */
+    public enum Policy {
+        /** The oldest queued offer is dropped. */
+        DROP_OLDEST,
+        /** Only the newest offer of each lot is kept, whatever the capacity, so the client reads current prices only. */
+        CONFLATE,
+        /** The client is disconnected: it lags by the whole capacity of the queue. */
+        DISCONNECT;
+
+        /**
+         * Parses a policy from its name in a system property, such as {@code drop-oldest}.
+         *
+         * @param name the name of the policy, in any case.
+         * @return the policy.
+         */
+        public static Policy of(String name) {
+            return valueOf(name.toUpperCase().replace('-', '_'));
+        }
+
+        /**
+         * Returns the name of the policy as written in a system property.
+         *
+         * @return the name in lower case, such as {@code drop-oldest}.
+         */
+        public String label() {
+            return name().toLowerCase().replace('_', '-');
+        }
+    }
+
+    /** The policy applied when the offers reach the capacity. */
+    private final Policy policy;
+
+    /** The maximum number of queued offers. */
+    private final int capacity;
+
+    /** The maximum number of queued replies. */
+    private final int replyCapacity;
+
+    /**
+     * The queued price offers, oldest first. With the {@link Policy#CONFLATE} policy, it holds one offer per lot
+     * with a pending price, in the order the lots became pending, and the price written is the one in {@link #latest}.
+     */
+    private final ArrayDeque<PriceFrame> offers;
+
+    /** The newest pending offer of each lot with the {@link Policy#CONFLATE} policy, indexed by lot. */
+    private PriceFrame[] latest = new PriceFrame[0];
+
+    /** The queued replies, written before the offers. */
+    private final ArrayDeque<PriceFrame> replies = new ArrayDeque<>();
+
+    /** Guards the queues and the flags. */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /** Signalled when a frame is added, or when the taking thread is woken up or must stop. */
+    private final Condition changed = lock.newCondition();
+
+    /** Set by {@link #wakeUp()} until the taking thread returns. */
+    private boolean wokenUp;
+
+    /** Set when the queue is closed; nothing is queued afterwards. */
+    private boolean closed;
+
+    /**
+     * Constructs an empty {@code OutboundQueue}.
+     *
+     * @param capacity the maximum number of queued offers, at least 1.
+     * @param replyCapacity the maximum number of queued replies, at least 1; the client is disconnected beyond.
+     * @param policy what happens when an offer arrives while the queue is full.
+     */
+    public OutboundQueue(int capacity, int replyCapacity, Policy policy) {
+        this.capacity = Math.max(1, capacity);
+        this.replyCapacity = Math.max(1, replyCapacity);
+        this.policy = policy;
+        this.offers = new ArrayDeque<>(this.capacity);
+    }
+
+    /**
+     * Queues a frame, applying the policy if it is an offer and the queue is full, or disconnecting the client
+     * if it is a reply and the replies are full.
+     *
+     * @param frame the encoded offer or reply.
+     * @return {@code false} if the client must be disconnected, in which case the queue is closed.
+     */
+    public boolean add(PriceFrame frame) {
+        int fired = 0;
+        boolean overflow = false;
+        lock.lock();
+        try {
+            if (closed) {
+                return true;
+            }
+            if (frame.isReply()) {
+                if (replies.size() < replyCapacity) {
+                    replies.add(frame);
+                } else {
+                    closeLocked();
+                    overflow = true;
+                }
+            } else if (policy == Policy.CONFLATE) {
+                fired = conflate(frame);
+            } else if (offers.size() < capacity) {
+                offers.add(frame);
+            } else if (policy == Policy.DISCONNECT) {
+                closeLocked();
+                fired = 1;
+            } else {
+                offers.poll();
+                offers.add(frame);
+                fired = 1;
+            }
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+        if (overflow) {
+            Server.metrics().backpressure(Policy.DISCONNECT, 1);
+            return false;
+        }
+        if (fired > 0) {
+            Server.metrics().backpressure(policy, fired);
+        }
+        return policy != Policy.DISCONNECT || fired == 0;
+    }
+
+    /**
+     * Takes the next frame without waiting.
+     *
+     * @return the oldest reply, or else the oldest offer, or {@code null} if the queue is empty.
+     */
+    public PriceFrame poll() {
+        lock.lock();
+        try {
+            return pollLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits a limited time for the next frame.
+     *
+     * @param timeoutNanos how long to wait, in nanoseconds; a frame already queued is returned at once.
+     * @return the oldest reply, or else the oldest offer, or {@code null} if none arrived in time or the queue
+     *         is closed.
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    public PriceFrame poll(long timeoutNanos) throws InterruptedException {
+        lock.lock();
+        try {
+            PriceFrame frame;
+            while ((frame = pollLocked()) == null && timeoutNanos > 0 && !closed) {
+                timeoutNanos = changed.awaitNanos(timeoutNanos);
+            }
+            return frame;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for the next frame.
+     *
+     * @return the oldest reply, or else the oldest offer, or {@code null} if the queue is closed or the thread
+     *         was woken up with {@link #wakeUp()}.
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    public PriceFrame take() throws InterruptedException {
+        lock.lock();
+        try {
+            PriceFrame frame;
+            while ((frame = pollLocked()) == null && !wokenUp && !closed) {
+                changed.await();
+            }
+            wokenUp = false;
+            return frame;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Makes the thread waiting in {@link #take()}, or the next one to call it, return even if the queue is empty.
+     */
+    public void wakeUp() {
+        lock.lock();
+        try {
+            wokenUp = true;
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of queued frames.
+     *
+     * @return the number of offers and replies waiting.
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return offers.size() + replies.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Tells whether the queue has been closed, by {@link #close()} or by the {@link Policy#DISCONNECT} policy.
+     *
+     * @return {@code true} if the client must be disconnected.
+     */
+    public boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Discards the queued frames and refuses the next ones. The taking thread returns {@code null}.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closeLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Replaces the pending offer of the lot of a new offer, or queues the lot if it has none. Called while
+     * holding the lock.
+     *
+     * @param frame the new offer.
+     * @return the number of offers conflated, 0 or 1.
+     */
+    private int conflate(PriceFrame frame) {
+        int lot = frame.lot();
+        if (lot >= latest.length) {
+            latest = Arrays.copyOf(latest, Math.max(lot + 1, 2 * latest.length));
+        }
+        PriceFrame pending = latest[lot];
+        latest[lot] = frame;
+        if (pending != null) {
+            return 1;
+        }
+        offers.add(frame);
+        return 0;
+    }
+
+    /**
+     * Takes the next frame while holding the lock.
+     */
+    private PriceFrame pollLocked() {
+        PriceFrame frame = replies.poll();
+        if (frame != null) {
+            return frame;
+        }
+        frame = offers.poll();
+        if (frame != null && policy == Policy.CONFLATE) {
+            //the lot was queued with its first pending offer, the newest one is written instead
+            int lot = frame.lot();
+            frame = latest[lot];
+            latest[lot] = null;
+        }
+        return frame;
+    }
+
+    /**
+     * Closes the queue while holding the lock.
+     */
+    private void closeLocked() {
+        closed = true;
+        offers.clear();
+        replies.clear();
+        Arrays.fill(latest, null);
+        changed.signal();
+    }
+}
@@ -0,0 +1,165 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@code PriceFrame} is a price offer encoded once, ready to be written to any number of clients.
+ * It also carries the replies to purchase requests, which name a lot and a price as well.
+ *
+ * <p>The frame is encoded in both the text and the binary {@link Protocol}. The encoded bytes are shared by
+ * every subscriber and never modified, so the cost of encoding a broadcast does not depend on the number of
+ * connected clients.</p>
+ */
+public final class PriceFrame {
+
+    /** The lot the price belongs to. */
+    private final int lot;
+
+    /** The offered price. */
+    private final int price;
+
+    /** Whether the frame is a reply to a purchase request rather than an offer. */
+    private final boolean reply;
+
+    /** The encoded price line, shared read-only by all text subscribers. */
+    private final byte[] line;
+
+    /** The encoded binary frame, shared read-only by all binary subscribers. */
+    private final byte[] frame;
+
+    /** A read-only view of {@link #line}, duplicated for each channel write. */
+    private final ByteBuffer lineBuffer;
+
+    /** A read-only view of {@link #frame}, duplicated for each channel write. */
+    private final ByteBuffer frameBuffer;
+
+    /**
+     * Constructs a {@code PriceFrame} by encoding the given price.
+     *
+     * @param lot the lot the price belongs to.
+     * @param price the offered price.
+     * @param sequence the sequence number of the tick, sent to binary clients only.
+     */
+    public PriceFrame(int lot, int price, int sequence) {
+        this(lot, price, false, Protocol.encodeTextOffer(lot, price), Protocol.encodeBinaryOffer(lot, price, sequence));
+    }
+
+    /**
+     * Constructs a {@code PriceFrame} from its encodings.
+     *
+     * @param lot the lot the price belongs to.
+     * @param price the price.
+     * @param reply whether the frame is a reply to a purchase request.
+     * @param line the text encoding.
+     * @param frame the binary encoding.
+     */
+    private PriceFrame(int lot, int price, boolean reply, byte[] line, byte[] frame) {
+        this.lot = lot;
+        this.price = price;
+        this.reply = reply;
+        this.line = line;
+        this.frame = frame;
+        this.lineBuffer = ByteBuffer.wrap(line).asReadOnlyBuffer();
+        this.frameBuffer = ByteBuffer.wrap(frame).asReadOnlyBuffer();
+    }
+
+    /**
+     * Creates the reply to a filled purchase request.
+     *
+     * @param lot the lot of the request.
+     * @param price the price the request answered.
+     * @return the encoded reply.
+     */
+    public static PriceFrame filled(int lot, int price) {
+        return new PriceFrame(lot, price, true, Protocol.encodeTextReply(true, lot, price), Protocol.encodeBinaryPrice(Protocol.FILLED, lot, price));
+    }
+
+    /**
+     * Creates the reply to a rejected purchase request.
+     *
+     * @param lot the lot of the request.
+     * @param price the price the request answered.
+     * @return the encoded reply.
+     */
+    public static PriceFrame rejected(int lot, int price) {
+        return new PriceFrame(lot, price, true, Protocol.encodeTextReply(false, lot, price), Protocol.encodeBinaryPrice(Protocol.REJECTED, lot, price));
+    }
+
+    /**
+     * Gets the lot the price belongs to.
+     *
+     * @return the identifier of the lot.
+     */
+    public int lot() {
+        return lot;
+    }
+
+    /**
+     * Gets the offered price, or the price answered by a purchase request for a reply.
+     *
+     * @return the price.
+     */
+    public int price() {
+        return price;
+    }
+
+    /**
+     * Tells whether the frame is a reply to a purchase request, which must reach the client, rather than an offer.
+     *
+     * @return {@code true} for a reply.
+     */
+    public boolean isReply() {
+        return reply;
+    }
+
+    /**
+     * Returns a view of the encoded frame with its own position, so that several channels can write
+     * the same bytes independently.
+     *
+     * @param binary whether the client speaks the binary protocol.
+     * @return a read-only buffer positioned at the start of the frame.
+     */
+    public ByteBuffer buffer(boolean binary) {
+        return (binary ? frameBuffer : lineBuffer).duplicate();
+    }
+
+    /**
+     * Returns the number of bytes of the encoded frame.
+     *
+     * @param binary whether the client speaks the binary protocol.
+     * @return the length of the line or of the binary frame.
+     */
+    public int length(boolean binary) {
+        return binary ? frame.length : line.length;
+    }
+
+    /**
+     * Copies the encoded frame at the position of a buffer, if it fits.
+     *
+     * @param out the buffer of the bytes waiting to be written to the client.
+     * @param binary whether the client speaks the binary protocol.
+     * @return {@code false} if the buffer has not enough room left, in which case it is left unchanged.
+     */
+    public boolean copyTo(ByteBuffer out, boolean binary) {
+        byte[] bytes = binary ? frame : line;
+        if (out.remaining() < bytes.length) {
+            return false;
+        }
+        out.put(bytes);
+        return true;
+    }
+
+    /**
+     * Writes the encoded frame to a stream.
+     *
+     * @param out the stream connected to the client.
+     * @param binary whether the client speaks the binary protocol.
+     * @return the number of bytes written.
+     * @throws IOException if the frame cannot be written.
+     */
+    public int writeTo(OutputStream out, boolean binary) throws IOException {
+        byte[] bytes = binary ? frame : line;
+        out.write(bytes);
+        return bytes.length;
+    }
+}
@@ -0,0 +1,321 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * {@code Protocol} defines the messages exchanged between the {@link Server} and its clients.
+ *
+ * <p>Clients speak the text line protocol by default: the server sends each price as a line and the client
+ * answers with {@link #PURCHASE_REQUEST} or {@link #FINISHED_PURCHASING}. Prices of lot 0 are sent as a bare
+ * number, prices of the other lots as {@code Lot <id> <price>}. Clients choose their lots with
+ * {@link #SUBSCRIBE} and {@link #UNSUBSCRIBE} followed by the lot identifier. A purchase request may be tagged
+ * as {@code Purchase request <lot> <price> <bid>}, naming the price it answers; the server then replies with
+ * {@code Filled <lot> <price>} or {@code Rejected <lot> <price>}. Untagged requests get no reply. A client may instead send
+ * {@link #BINARY_HELLO} as its first line. The server answers with the same line, and from then on both
+ * sides exchange binary frames: one unsigned length byte, followed by that many bytes starting with the
+ * message type. Binary offers carry the sequence number of their tick, which clients may echo at the end of
+ * their purchase requests so that the server can measure the latency of each request.</p>
+ *
+ * <p>A server that cannot take more clients answers a new connection with the {@link #SERVER_BUSY} line, before
+ * reading anything from it, and closes it.</p>
+ */
+public final class Protocol {
+
+    /** Text message sent by a client to buy at the last offered price. */
+    public static final String PURCHASE_REQUEST = "Purchase request";
+
+    /** Prefix of a tagged text purchase request, followed by the lot, the price answered and the bid. */
+    public static final String TAGGED_PURCHASE_REQUEST = PURCHASE_REQUEST + " ";
+
+    /** Text message sent by a client that has finished purchasing. */
+    public static final String FINISHED_PURCHASING = "Finished purchasing";
+
+    /** Prefix of the text message sent by a client to receive the prices of a lot. */
+    public static final String SUBSCRIBE = "Subscribe ";
+
+    /** Prefix of the text message sent by a client to stop receiving the prices of a lot. */
+    public static final String UNSUBSCRIBE = "Unsubscribe ";
+
+    /** Prefix of the text price offer of a lot other than lot 0. */
+    public static final String LOT_OFFER = "Lot ";
+
+    /** Prefix of the text reply to a filled purchase request. */
+    public static final String FILLED_REPLY = "Filled ";
+
+    /** Prefix of the text reply to a rejected purchase request. */
+    public static final String REJECTED_REPLY = "Rejected ";
+
+    /** Line sent by a client to switch to binary frames, and by the server to acknowledge the switch. */
+    public static final String BINARY_HELLO = "Protocol binary";
+
+    /** Line sent by the server to a connection it refuses because it serves as many clients as it can. */
+    public static final String SERVER_BUSY = "Server busy";
+
+    /** Binary frame type of a price offer, followed by the price, the lot and the tick sequence number as 4-byte integers. */
+    public static final byte OFFER = 1;
+
+    /**
+     * Binary frame type of a purchase request. The type may be followed by the lot, the price answered and
+     * the bid as 4-byte integers, and then by the sequence number of the offer; a request without them gets
+     * no reply.
+     */
+    public static final byte PURCHASE = 2;
+
+    /** Binary frame type of a finish notification. */
+    public static final byte FINISHED = 3;
+
+    /** Binary frame type of a subscription to a lot, followed by the lot as a 4-byte integer. */
+    public static final byte SUBSCRIBE_LOT = 4;
+
+    /** Binary frame type of the end of a subscription to a lot, followed by the lot as a 4-byte integer. */
+    public static final byte UNSUBSCRIBE_LOT = 5;
+
+    /** Binary frame type of a filled purchase request, followed by the price and the lot as 4-byte integers. */
+    public static final byte FILLED = 6;
+
+    /** Binary frame type of a rejected purchase request, followed by the price and the lot as 4-byte integers. */
+    public static final byte REJECTED = 7;
+
+    /** The length byte of a tagged binary purchase request: the type and three integers. */
+    public static final int TAGGED_PURCHASE_LENGTH = 13;
+
+    /** The length byte of a tagged binary purchase request echoing the sequence number of its offer. */
+    public static final int SEQUENCED_PURCHASE_LENGTH = TAGGED_PURCHASE_LENGTH + Integer.BYTES;
+
+    /** The longest line accepted from a client, to bound the memory used by a misbehaving one. */
+    public static final int MAX_LINE_LENGTH = 256;
+
+    /** The encoded {@link #PURCHASE_REQUEST}. */
+    private static final byte[] PURCHASE_REQUEST_BYTES = PURCHASE_REQUEST.getBytes(StandardCharsets.US_ASCII);
+
+    /** The encoded {@link #TAGGED_PURCHASE_REQUEST}. */
+    private static final byte[] TAGGED_PURCHASE_REQUEST_BYTES = TAGGED_PURCHASE_REQUEST.getBytes(StandardCharsets.US_ASCII);
+
+    /** The encoded {@link #FINISHED_PURCHASING}. */
+    private static final byte[] FINISHED_PURCHASING_BYTES = FINISHED_PURCHASING.getBytes(StandardCharsets.US_ASCII);
+
+    /** The encoded {@link #SUBSCRIBE}. */
+    private static final byte[] SUBSCRIBE_BYTES = SUBSCRIBE.getBytes(StandardCharsets.US_ASCII);
+
+    /** The encoded {@link #UNSUBSCRIBE}. */
+    private static final byte[] UNSUBSCRIBE_BYTES = UNSUBSCRIBE.getBytes(StandardCharsets.US_ASCII);
+
+    /** The encoded {@link #LOT_OFFER}. */
+    private static final byte[] LOT_OFFER_BYTES = LOT_OFFER.getBytes(StandardCharsets.US_ASCII);
+
+    /** The encoded {@link #FILLED_REPLY}. */
+    private static final byte[] FILLED_REPLY_BYTES = FILLED_REPLY.getBytes(StandardCharsets.US_ASCII);
+
+    /** The encoded {@link #REJECTED_REPLY}. */
+    private static final byte[] REJECTED_REPLY_BYTES = REJECTED_REPLY.getBytes(StandardCharsets.US_ASCII);
+
+    /** The encoded {@link #BINARY_HELLO}. */
+    private static final byte[] BINARY_HELLO_BYTES = BINARY_HELLO.getBytes(StandardCharsets.US_ASCII);
+
+    /** The encoded acknowledgement of {@link #BINARY_HELLO}. */
+    private static final byte[] BINARY_HELLO_LINE = (BINARY_HELLO + "\n").getBytes(StandardCharsets.US_ASCII);
+
+    /** The encoded {@link #SERVER_BUSY} line. */
+    private static final byte[] SERVER_BUSY_LINE = (SERVER_BUSY + "\n").getBytes(StandardCharsets.US_ASCII);
+
+    private Protocol() {
+    }
+
+    /**
+     * Encodes a price offer as a text line.
+     *
+     * @param lot the lot the price belongs to.
+     * @param price the offered price.
+     * @return the encoded line.
+     */
+    public static byte[] encodeTextOffer(int lot, int price) {
+        if (lot == 0) {
+            byte[] line = new byte[Ascii.length(price) + 1];
+            line[Ascii.putInt(line, 0, price)] = '\n';
+            return line;
+        }
+        return encodeTextLine(LOT_OFFER_BYTES, lot, price);
+    }
+
+    /**
+     * Encodes the reply to a tagged purchase request as a text line.
+     *
+     * @param filled whether the purchase was filled.
+     * @param lot the lot of the request.
+     * @param price the price the request answered.
+     * @return the encoded line.
+     */
+    public static byte[] encodeTextReply(boolean filled, int lot, int price) {
+        return encodeTextLine(filled ? FILLED_REPLY_BYTES : REJECTED_REPLY_BYTES, lot, price);
+    }
+
+    /**
+     * Encodes a text line made of a prefix, a lot and a price, without going through a {@link String}.
+     *
+     * @param prefix the encoded prefix, ending with a space.
+     * @param lot the lot.
+     * @param price the price.
+     * @return the encoded line.
+     */
+    private static byte[] encodeTextLine(byte[] prefix, int lot, int price) {
+        byte[] line = new byte[prefix.length + Ascii.length(lot) + 1 + Ascii.length(price) + 1];
+        System.arraycopy(prefix, 0, line, 0, prefix.length);
+        int i = Ascii.putInt(line, prefix.length, lot);
+        line[i++] = ' ';
+        i = Ascii.putInt(line, i, price);
+        line[i] = '\n';
+        return line;
+    }
+
+    /**
+     * Encodes a price offer as a binary frame. The price comes first, so that a client only interested in
+     * the price can ignore the rest of the frame.
+     *
+     * @param lot the lot the price belongs to.
+     * @param price the offered price.
+     * @param sequence the sequence number of the tick.
+     * @return the encoded frame.
+     */
+    public static byte[] encodeBinaryOffer(int lot, int price, int sequence) {
+        return new byte[] {
+            13, OFFER,
+            (byte) (price >>> 24), (byte) (price >>> 16), (byte) (price >>> 8), (byte) price,
+            (byte) (lot >>> 24), (byte) (lot >>> 16), (byte) (lot >>> 8), (byte) lot,
+            (byte) (sequence >>> 24), (byte) (sequence >>> 16), (byte) (sequence >>> 8), (byte) sequence
+        };
+    }
+
+    /**
+     * Encodes a reply as a binary frame. The price comes first, as in an offer.
+     *
+     * @param type {@link #FILLED} or {@link #REJECTED}.
+     * @param lot the lot the price belongs to.
+     * @param price the price.
+     * @return the encoded frame.
+     */
+    public static byte[] encodeBinaryPrice(byte type, int lot, int price) {
+        return new byte[] {
+            9, type,
+            (byte) (price >>> 24), (byte) (price >>> 16), (byte) (price >>> 8), (byte) price,
+            (byte) (lot >>> 24), (byte) (lot >>> 16), (byte) (lot >>> 8), (byte) lot
+        };
+    }
+
+    /**
+     * Gets the encoded acknowledgement sent to a client switching to binary frames.
+     *
+     * @return a copy of the encoded line.
+     */
+    public static byte[] binaryHelloLine() {
+        return BINARY_HELLO_LINE.clone();
+    }
+
+    /**
+     * Gets the encoded line sent to a refused connection.
+     *
+     * @return a copy of the encoded line.
+     */
+    public static byte[] serverBusyLine() {
+        return SERVER_BUSY_LINE.clone();
+    }
+
+    /**
+     * Tells whether a text line is {@link #BINARY_HELLO}.
+     *
+     * @param buffer the buffer holding the line.
+     * @param from the index of the first character.
+     * @param to the index following the last character, without the terminator.
+     * @return {@code true} if the client asks for binary frames.
+     */
+    public static boolean isBinaryHello(ByteBuffer buffer, int from, int to) {
+        return Ascii.equals(buffer, from, to, BINARY_HELLO_BYTES);
+    }
+
+    /**
+     * Decodes a text line sent by a client in place, without building a {@link String}.
+     *
+     * <p>A line that is none of the client messages decodes to type 0 and is ignored, as is a
+     * {@link #PURCHASE_REQUEST} followed by anything but a space.</p>
+     *
+     * @param buffer the buffer holding the line.
+     * @param from the index of the first character.
+     * @param to the index following the last character, without the terminator.
+     * @param request the request to fill in, reused from one line to the next.
+     * @return the request.
+     * @throws NumberFormatException if the numbers following a known prefix are malformed.
+     */
+    public static Request decodeLine(ByteBuffer buffer, int from, int to, Request request) {
+        request.type = 0;
+        request.tagged = false;
+        if (Ascii.equals(buffer, from, to, PURCHASE_REQUEST_BYTES)) {
+            request.type = PURCHASE;
+        } else if (Ascii.equals(buffer, from, to, FINISHED_PURCHASING_BYTES)) {
+            request.type = FINISHED;
+        } else if (Ascii.startsWith(buffer, from, to, TAGGED_PURCHASE_REQUEST_BYTES)) {
+            int start = from + TAGGED_PURCHASE_REQUEST_BYTES.length;
+            int space = Ascii.indexOf(buffer, start, to, (byte) ' ');
+            int next = space < 0 ? -1 : Ascii.indexOf(buffer, space + 1, to, (byte) ' ');
+            if (next < 0) {
+                throw new NumberFormatException("Expected lot, price and bid");
+            }
+            request.lot = Ascii.parseInt(buffer, start, space);
+            request.price = Ascii.parseInt(buffer, space + 1, next);
+            request.bid = Ascii.parseInt(buffer, next + 1, to);
+            request.type = PURCHASE;
+            request.tagged = true;
+        } else if (Ascii.startsWith(buffer, from, to, SUBSCRIBE_BYTES)) {
+            request.lot = Ascii.parseInt(buffer, from + SUBSCRIBE_BYTES.length, to);
+            request.type = SUBSCRIBE_LOT;
+        } else if (Ascii.startsWith(buffer, from, to, UNSUBSCRIBE_BYTES)) {
+            request.lot = Ascii.parseInt(buffer, from + UNSUBSCRIBE_BYTES.length, to);
+            request.type = UNSUBSCRIBE_LOT;
+        }
+        return request;
+    }
+
+    /**
+     * Reads an ASCII line from a stream into a buffer, without buffering past its end so that the stream can
+     * switch to binary frames right after the line.
+     *
+     * @param in the stream to read from.
+     * @param line the buffer receiving the line without its terminator, between 0 and its limit; at least
+     *             {@link #MAX_LINE_LENGTH} bytes long.
+     * @return {@code false} at the end of the stream if no character was read.
+     * @throws IOException if the stream fails or the line is longer than {@link #MAX_LINE_LENGTH}.
+     */
+    public static boolean readLine(InputStream in, ByteBuffer line) throws IOException {
+        line.clear();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) {
+                line.flip();
+                return line.hasRemaining();
+            }
+            if (c != '\r') {
+                if (line.position() == MAX_LINE_LENGTH) {
+                    throw new IOException("Line too long");
+                }
+                line.put((byte) c);
+            }
+        }
+        line.flip();
+        return true;
+    }
+
+    /**
+     * A {@code Request} is a decoded text line, reused from one line to the next so that decoding allocates
+     * nothing.
+     */
+    public static final class Request {
+        byte type; /** {@link #PURCHASE}, {@link #FINISHED}, {@link #SUBSCRIBE_LOT}, {@link #UNSUBSCRIBE_LOT}, or 0 for an unknown line. */
+
+        boolean tagged; /** Whether a purchase request names the lot, the price and the bid. */
+
+        int lot; /** The lot of a tagged purchase request or of a subscription. */
+
+        int price; /** The price a tagged purchase request answers. */
+
+        int bid; /** The bid of a tagged purchase request. */
+    }
+}
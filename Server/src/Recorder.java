@@ -0,0 +1,356 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The {@code Recorder} journals every price generated by the {@link AuctionEngine} and every message received
+ * from a client to an append-only binary log, which {@link Replay} feeds back to the server.
+ *
+ * <p>The log starts with a header naming the number of lots and their interval, followed by one record per
+ * event: a type byte, the time of the event in nanoseconds since the recording started, and the fields of the
+ * event. Clients are named by the order in which they connected. Messages are recorded as received, either a
+ * text line or the type and payload of a binary frame, so a replay goes through the same dispatch code.</p>
+ *
+ * <p>Events are recorded by many threads: the price generator, and the threads or event loops serving the
+ * clients. As in {@link Log}, a thread recording an event claims the next slot of a ring buffer with a
+ * compare-and-set, stamps the event and copies its fields there; a single writer thread numbers the clients and
+ * writes the events in the order they were claimed, buffered in memory until the log is closed or the buffer is
+ * full. The threads serving the clients therefore never wait for each other or for the disk. When the writer is
+ * a whole ring behind, they wait for it rather than drop an event, which would make the replay diverge.</p>
+ */
+public final class Recorder {
+
+    /** The first bytes of a log, "AUCR". */
+    static final int MAGIC = 0x41554352;
+
+    /** The version of the log format. */
+    static final int VERSION = 1;
+
+    /** A price of a lot: the lot and the price. */
+    static final byte PRICE = 1;
+
+    /** A client connected, and was subscribed to lot 0. */
+    static final byte CONNECT = 2;
+
+    /** A text line from a client: its length on two bytes and its characters. */
+    static final byte LINE = 3;
+
+    /** A binary frame from a client: its type, the length of its payload on one byte and the payload. */
+    static final byte FRAME = 4;
+
+    /** A client asked for the binary protocol. */
+    static final byte BINARY_HELLO = 5;
+
+    /** A client disconnected. */
+    static final byte DISCONNECT = 6;
+
+    /** The size of the buffer holding the records not written yet. */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /** The number of events that can wait for the writer thread; a power of two. */
+    private static final int RING_SIZE = 1 << 13;
+
+    /** The time the writer thread parks when there is nothing to write, in nanoseconds. */
+    private static final long IDLE_PARK_NANOS = 1_000_000;
+
+    /** The log being written. Only written by the writer thread once the header is written. */
+    private final DataOutputStream out;
+
+    /** The path of the log, for error messages. */
+    private final Path path;
+
+    /** The time the recording started. */
+    private final long start = System.nanoTime();
+
+    /** The ring buffer of events, allocated once. */
+    private final Event[] events = new Event[RING_SIZE];
+
+    /** The next sequence to claim by a recording thread. */
+    private final AtomicLong claimed = new AtomicLong();
+
+    /** The next sequence to write. Only written by the writer thread. */
+    private volatile long consumed;
+
+    /** The number given to each connected client. Only accessed by the writer thread. */
+    private final Map<Subscriber, Integer> clients = new HashMap<>();
+
+    /** The number of the next client to connect. Only accessed by the writer thread. */
+    private int nextClient;
+
+    /** Set when the log is closed or could not be written; nothing is recorded afterwards. */
+    private volatile boolean closed;
+
+    /** The thread writing the events to the log. */
+    private final Thread writer;
+
+    /**
+     * Creates a log, replacing any file at the given path, writes its header and starts its writer thread.
+     *
+     * @param path the path of the log.
+     * @param lotCount the number of lots of the auctions.
+     * @param lotInterval the number of ticks between two prices of a lot.
+     * @throws IOException if the log cannot be created.
+     */
+    public Recorder(Path path, int lotCount, int lotInterval) throws IOException {
+        this.path = path;
+        OutputStream file = Files.newOutputStream(path);
+        this.out = new DataOutputStream(new BufferedOutputStream(file, BUFFER_SIZE));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(lotCount);
+        out.writeInt(lotInterval);
+        for (int i = 0; i < RING_SIZE; i++) {
+            events[i] = new Event();
+        }
+
+        writer = new Thread(this::drain, "recorder");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Records a price generated for a lot.
+     *
+     * @param lot the identifier of the lot.
+     * @param price the price.
+     */
+    public void price(int lot, int price) {
+        Event event = claim(PRICE, null);
+        if (event != null) {
+            event.lot = lot;
+            event.price = price;
+            publish(event);
+        }
+    }
+
+    /**
+     * Records a new client, which the writer thread gives the next client number.
+     *
+     * @param subscriber the client.
+     */
+    public void connected(Subscriber subscriber) {
+        publish(claim(CONNECT, subscriber));
+    }
+
+    /**
+     * Records a text line received from a client.
+     *
+     * @param subscriber the client.
+     * @param buffer the buffer holding the line; left unchanged.
+     * @param from the index of the first character.
+     * @param to the index following the last character, without the terminator.
+     */
+    public void line(Subscriber subscriber, ByteBuffer buffer, int from, int to) {
+        Event event = claim(LINE, subscriber);
+        if (event != null) {
+            event.length = Math.min(to - from, event.bytes.length);
+            buffer.get(from, event.bytes, 0, event.length);
+            publish(event);
+        }
+    }
+
+    /**
+     * Records a binary frame received from a client.
+     *
+     * @param subscriber the client.
+     * @param type the type of the frame.
+     * @param payload the bytes following the type, between the position and the limit; left unchanged.
+     */
+    public void frame(Subscriber subscriber, byte type, ByteBuffer payload) {
+        Event event = claim(FRAME, subscriber);
+        if (event != null) {
+            event.frameType = type;
+            event.length = Math.min(payload.remaining(), event.bytes.length);
+            payload.get(payload.position(), event.bytes, 0, event.length);
+            publish(event);
+        }
+    }
+
+    /**
+     * Records a client asking for the binary protocol.
+     *
+     * @param subscriber the client.
+     */
+    public void binaryHello(Subscriber subscriber) {
+        publish(claim(BINARY_HELLO, subscriber));
+    }
+
+    /**
+     * Records a client disconnecting, whose number the writer thread then forgets.
+     *
+     * @param subscriber the client.
+     */
+    public void disconnected(Subscriber subscriber) {
+        publish(claim(DISCONNECT, subscriber));
+    }
+
+    /**
+     * Writes the events recorded so far and closes the log. Later events are not recorded.
+     */
+    public synchronized void close() {
+        if (closed && !writer.isAlive()) {
+            return;
+        }
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            Log.warn("Failed to close recording {}: {}", path, e.getMessage());
+        }
+    }
+
+    /**
+     * Claims the next slot of the ring for an event and stamps it, waiting while the writer is a whole ring behind.
+     *
+     * @param type the type of the record.
+     * @param subscriber the client of the event, {@code null} for a price.
+     * @return the slot, to be filled and published, or {@code null} if the log is closed.
+     */
+    private Event claim(byte type, Subscriber subscriber) {
+        while (true) {
+            if (closed) {
+                return null;
+            }
+            long sequence = claimed.get();
+            if (sequence - consumed >= events.length) {
+                LockSupport.parkNanos(1);
+            } else if (claimed.compareAndSet(sequence, sequence + 1)) {
+                Event event = events[(int) sequence & (events.length - 1)];
+                event.claimed = sequence;
+                event.type = type;
+                event.time = System.nanoTime() - start;
+                event.subscriber = subscriber;
+                return event;
+            }
+        }
+    }
+
+    /**
+     * Publishes a filled slot to the writer thread.
+     *
+     * @param event the slot, or {@code null} if the log is closed.
+     */
+    private static void publish(Event event) {
+        if (event != null) {
+            event.sequence = event.claimed;
+        }
+    }
+
+    /**
+     * Writes the published events in order until the log is closed and every claimed event is written. Runs on
+     * the writer thread.
+     */
+    private void drain() {
+        long next = 0;
+        while (true) {
+            boolean wrote = false;
+            Event event;
+            while ((event = events[(int) next & (events.length - 1)]).sequence == next) {
+                try {
+                    write(event);
+                } catch (IOException e) {
+                    Log.warn("Stopped recording to {}: {}", path, e.getMessage());
+                    closed = true;
+                    return;
+                }
+                event.subscriber = null;
+                consumed = ++next;
+                wrote = true;
+            }
+            if (!wrote) {
+                if (closed && next == claimed.get()) {
+                    return;
+                }
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    /**
+     * Writes an event to the log, numbering the clients. Events of clients that connected before the recording
+     * started are skipped.
+     *
+     * @param event the event.
+     * @throws IOException if the log cannot be written.
+     */
+    private void write(Event event) throws IOException {
+        if (event.type == PRICE) {
+            header(event);
+            out.writeInt(event.lot);
+            out.writeInt(event.price);
+            return;
+        }
+        Integer client;
+        if (event.type == CONNECT) {
+            client = nextClient++;
+            clients.put(event.subscriber, client);
+        } else if (event.type == DISCONNECT) {
+            client = clients.remove(event.subscriber);
+        } else {
+            client = clients.get(event.subscriber);
+        }
+        if (client == null) {
+            return;
+        }
+        header(event);
+        out.writeInt(client);
+        if (event.type == LINE) {
+            out.writeShort(event.length);
+            out.write(event.bytes, 0, event.length);
+        } else if (event.type == FRAME) {
+            out.writeByte(event.frameType);
+            out.writeByte(event.length);
+            out.write(event.bytes, 0, event.length);
+        }
+    }
+
+    /**
+     * Writes the type and the time of a record.
+     *
+     * @param event the event.
+     * @throws IOException if the log cannot be written.
+     */
+    private void header(Event event) throws IOException {
+        out.writeByte(event.type);
+        out.writeLong(event.time);
+    }
+
+    /**
+     * An {@code Event} holds one event between the thread recording it and the writer thread.
+     */
+    private static final class Event {
+        private volatile long sequence = -1; /** The sequence of the event, written last to publish it. */
+
+        private long claimed; /** The sequence claimed for the event, until it is published. */
+
+        private byte type; /** The type of the record. */
+
+        private long time; /** The time of the event, in nanoseconds since the recording started. */
+
+        private Subscriber subscriber; /** The client, {@code null} for a price. */
+
+        private int lot; /** The lot of a price. */
+
+        private int price; /** The price. */
+
+        private byte frameType; /** The type of a binary frame. */
+
+        private int length; /** The number of bytes of a line or of the payload of a frame. */
+
+        private final byte[] bytes = new byte[Math.max(Protocol.MAX_LINE_LENGTH, 255)]; /** The characters of a line or the payload of a frame. */
+    }
+}
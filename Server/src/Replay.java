@@ -0,0 +1,278 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@code Replay} feeds a log written by the {@link Recorder} back to the server, so that the same session can
+ * be rerun on different builds and their performance compared on identical input.
+ *
+ * <p>The recorded prices are offered by the {@link AuctionEngine} in place of random ones, and the recorded
+ * client messages go through the same dispatch code as live ones, {@link Server#handleMessage} and
+ * {@link Server#handleFrame}, on behalf of in-memory {@link ReplayClient}s standing for the recorded clients.
+ * The clients count what the server sends them instead of writing it to a socket. The events are replayed
+ * at their recorded times divided by a speed factor, or back to back with a speed of 0; the matching engine
+ * runs with the current {@code server.lotInventory}, {@code server.matchPolicy} and {@code server.matchers}
+ * settings.</p>
+ */
+public final class Replay {
+
+    /** Waits shorter than this are spun instead of parked. */
+    private static final long SPIN_THRESHOLD_NANOS = 50_000;
+
+    /** The log being replayed. */
+    private final DataInputStream in;
+
+    /** How many times faster than recorded the events are replayed, 0 for as fast as possible. */
+    private final double speed;
+
+    /** The clients of the recording, by client number. */
+    private final Map<Integer, ReplayClient> clients = new HashMap<>();
+
+    /** The payload of the binary frame being replayed, reused for every frame. */
+    private final ByteBuffer payload = ByteBuffer.allocate(255);
+
+    /** The number of prices replayed. */
+    private long prices;
+
+    /** The number of client messages replayed. */
+    private long messages;
+
+    /** The number of clients that connected. */
+    private int connections;
+
+    /** The frames sent to all the replayed clients. */
+    private final LongAdder framesSent = new LongAdder();
+
+    /** The bytes the frames sent to the replayed clients would take on their connections. */
+    private final LongAdder bytesSent = new LongAdder();
+
+    /**
+     * Constructs a {@code Replay} reading the given log.
+     *
+     * @param in the log, positioned after its header.
+     * @param speed how many times faster than recorded the events are replayed, 0 for as fast as possible.
+     */
+    private Replay(DataInputStream in, double speed) {
+        this.in = in;
+        this.speed = speed;
+    }
+
+    /**
+     * Replays a log and reports how long it took. Called by {@link Server#main} instead of serving clients.
+     *
+     * @param path the path of the log.
+     * @param speed how many times faster than recorded the events are replayed, 0 for as fast as possible.
+     */
+    static void run(Path path, double speed) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+            if (in.readInt() != Recorder.MAGIC || in.readInt() != Recorder.VERSION) {
+                Log.warn("Not a recording: {}", path);
+                return;
+            }
+            int lotCount = in.readInt();
+            int lotInterval = in.readInt();
+            Server.startAuctions(lotCount, lotInterval);
+            Log.info("Replaying {} at speed {}", path, speed == 0 ? "max" : String.valueOf(speed));
+
+            Replay replay = new Replay(in, speed);
+            long start = System.nanoTime();
+            try {
+                replay.replay(start);
+            } finally {
+                //the replay is over once the matchers have answered every request
+                Server.stopServer();
+            }
+            replay.report(System.nanoTime() - start);
+        } catch (IOException e) {
+            Log.warn("Failed to replay {}: {}", path, e.getMessage());
+        }
+    }
+
+    /**
+     * Replays the records until the end of the log.
+     *
+     * @param start the time the replay started.
+     * @throws IOException if the log cannot be read.
+     */
+    private void replay(long start) throws IOException {
+        AuctionEngine auctions = Server.auctions();
+        while (true) {
+            byte type;
+            long time;
+            try {
+                type = in.readByte();
+                time = in.readLong();
+            } catch (EOFException e) {
+                return;
+            }
+            if (speed > 0) {
+                awaitTime(start + (long) (time / speed));
+            }
+
+            try {
+                switch (type) {
+                    case Recorder.PRICE:
+                        auctions.offer(in.readInt(), in.readInt());
+                        prices++;
+                        break;
+                    case Recorder.CONNECT:
+                        connect(in.readInt());
+                        break;
+                    case Recorder.LINE: {
+                        ReplayClient client = clients.get(in.readInt());
+                        byte[] line = new byte[in.readUnsignedShort()];
+                        in.readFully(line);
+                        messages++;
+                        if (client != null) {
+                            Server.handleMessage(new String(line, StandardCharsets.ISO_8859_1), client);
+                        }
+                        break;
+                    }
+                    case Recorder.FRAME: {
+                        ReplayClient client = clients.get(in.readInt());
+                        byte frameType = in.readByte();
+                        payload.clear().limit(in.readUnsignedByte());
+                        in.readFully(payload.array(), 0, payload.limit());
+                        messages++;
+                        if (client != null) {
+                            Server.handleFrame(frameType, payload, client);
+                        }
+                        break;
+                    }
+                    case Recorder.BINARY_HELLO: {
+                        ReplayClient client = clients.get(in.readInt());
+                        if (client != null) {
+                            client.useBinaryProtocol();
+                        }
+                        break;
+                    }
+                    case Recorder.DISCONNECT: {
+                        ReplayClient client = clients.remove(in.readInt());
+                        if (client != null) {
+                            auctions.unsubscribeAll(client);
+                        }
+                        break;
+                    }
+                    default:
+                        throw new IOException("Unknown record type " + type);
+                }
+            } catch (EOFException e) {
+                Log.warn("The recording ends with an incomplete record");
+                return;
+            }
+        }
+    }
+
+    /**
+     * Connects a recorded client, subscribed to lot 0 like a live one.
+     *
+     * @param number the number of the client in the recording.
+     */
+    private void connect(int number) {
+        ReplayClient client = new ReplayClient(number, framesSent, bytesSent);
+        clients.put(number, client);
+        connections++;
+        Server.auctions().subscribe(0, client);
+    }
+
+    /**
+     * Waits until the time of the next record, parking for long waits and spinning for the last microseconds.
+     *
+     * @param deadline the time of the record on the replay clock.
+     */
+    private static void awaitTime(long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            if (remaining > SPIN_THRESHOLD_NANOS) {
+                LockSupport.parkNanos(remaining - SPIN_THRESHOLD_NANOS);
+            } else {
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    /**
+     * Prints what was replayed and how fast.
+     *
+     * @param elapsed the duration of the replay in nanoseconds.
+     */
+    private void report(long elapsed) {
+        if (!Log.isEnabled(Log.Level.INFO)) {
+            return;
+        }
+        double seconds = elapsed / 1e9;
+        Log.info(String.format("Replayed %d prices and %d messages of %d clients in %.3f s (%.0f prices/s, %.0f messages/s); sent %d frames, %d bytes",
+                prices, messages, connections, seconds, prices / seconds, messages / seconds, framesSent.sum(), bytesSent.sum()));
+    }
+
+    /**
+     * A {@code ReplayClient} stands for a recorded client. It counts the frames the server sends it, with the
+     * size they would have on the connection, and discards them.
+     */
+    static final class ReplayClient implements Subscriber {
+
+        /** The number of the client in the recording. */
+        private final int number;
+
+        /** The frames sent to all the replayed clients. */
+        private final LongAdder frames;
+
+        /** The bytes sent to all the replayed clients. */
+        private final LongAdder bytes;
+
+        /** Whether the client asked for binary frames. Read by the matcher threads sending replies. */
+        private volatile boolean binary;
+
+        /**
+         * Constructs a {@code ReplayClient}.
+         *
+         * @param number the number of the client in the recording.
+         * @param frames the counter of the frames sent to the replayed clients.
+         * @param bytes the counter of the bytes sent to the replayed clients.
+         */
+        ReplayClient(int number, LongAdder frames, LongAdder bytes) {
+            this.number = number;
+            this.frames = frames;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int id() {
+            return number;
+        }
+
+        @Override
+        public void send(PriceFrame frame) {
+            frames.increment();
+            bytes.add(frame.length(binary));
+        }
+
+        @Override
+        public void useBinaryProtocol() {
+            binary = true;
+        }
+
+        @Override
+        public int backlog() {
+            return 0;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public String toString() {
+            return "ReplayClient[" + number + "]";
+        }
+    }
+}
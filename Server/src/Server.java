@@ -1,12 +1,30 @@
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Random;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * The {@code Server} class simulates a price generator and a multi-client system.
@@ -15,20 +33,225 @@ import java.util.Random;
  *
  * <p>Clients can send requests to purchase, and the server manages the connection and communication with each client.
  * The server stops when all clients have disconnected.</p>
+ *
+ * <p>The server runs {@code server.lots} concurrent auctions in an {@link AuctionEngine}. Each client is
+ * subscribed to lot 0 when it connects and can subscribe to, or unsubscribe from, any lot afterwards.
+ * Purchase requests are arbitrated by a {@link MatchingEngine} selling {@code server.lotInventory} units per
+ * price with the {@code server.matchPolicy} policy ({@code first-come} or {@code highest-bid}).</p>
+ *
+ * <p>By default every client is served by its own platform thread running a {@link ClientHandler}. Setting the
+ * system property {@code server.mode} to {@code virtual} runs each {@link ClientHandler} on a virtual thread,
+ * and setting it to {@code nio} serves all clients from a fixed set of {@link EventLoop} threads instead,
+ * whose size is given by {@code server.eventLoops}.</p>
+ *
+ * <p>The server admits at most {@code server.maxClients} clients at a time. A connection arriving while it is
+ * full is answered with {@link Protocol#SERVER_BUSY} and closed by the accepting thread, without creating any
+ * thread for it, so a connection storm is turned away at the cost of one accept and one write per connection
+ * instead of exhausting the threads of the JVM. Connections waiting to be accepted are bounded by
+ * {@code server.acceptBacklog}.</p>
+ *
+ * <p>Connections are accepted by {@code server.acceptors} threads, either sharing one listening socket or, with
+ * {@code server.reusePort}, each on its own socket bound with {@code SO_REUSEPORT}. In {@code nio} mode each
+ * acceptor hands its connections to its own shard of the event loops, so reconnection storms are spread over
+ * threads that never wait on each other.</p>
+ *
+ * <p>Client lines are decoded in place, without building a {@link String}. In {@code nio} mode, setting
+ * {@code server.garbageFree} also gives each connection pooled direct buffers from a {@link BufferPool}, into
+ * which the prices are copied instead of being written through views of their own.</p>
+ *
+ * <p>Setting {@code server.metricsPort} serves the metrics of the server, such as the latency measured by the
+ * {@link LatencyTracker}, on that local port with a {@link MetricsServer}.</p>
  */
 public class Server {
 
     /** The port number the server listens on. */
     private static final int port = 9090;
 
-    /** The time to sleep between price generations in milliseconds. */
-    private static final long sleeptime = 2000;
+    /** The capacity of the pooled read and write buffers of a connection. */
+    private static final int IO_BUFFER_SIZE = 4096;
+
+    /** The number of prices generated per second. The default generates a price every 2 seconds. */
+    private static final double tickRate = Double.parseDouble(System.getProperty("server.tickRate", "0.5"));
+
+    /** The number of concurrent auctions. */
+    private static final int lotCount = Integer.getInteger("server.lots", 1);
+
+    /** The number of ticks between two prices of the same lot. */
+    private static final int lotInterval = Integer.getInteger("server.lotInterval", 1);
+
+    /** The number of units of a lot sold at each price, 0 for an unlimited inventory. */
+    private static final int lotInventory = Integer.getInteger("server.lotInventory", 0);
+
+    /** How the inventory of a lot is shared between competing purchase requests. */
+    private static final MatchingEngine.Policy matchPolicy =
+            MatchingEngine.Policy.valueOf(System.getProperty("server.matchPolicy", "first-come").toUpperCase().replace('-', '_'));
+
+    /** The number of threads arbitrating purchase requests. */
+    private static final int matcherCount = Integer.getInteger("server.matchers", Runtime.getRuntime().availableProcessors());
+
+    /**
+     * The number of orders that can wait for each matcher before the threads submitting them wait, rounded up to
+     * a power of two.
+     */
+    private static final int matcherQueueSize = Integer.getInteger("server.matcherQueue", 16384);
+
+    /** The time between two reports of the achieved tick rate in seconds. */
+    private static final long rateReportInterval = Long.getLong("server.rateReportInterval", 10);
+
+    /**
+     * How client connections are served: {@code blocking} (one platform thread per client),
+     * {@code virtual} (one virtual thread per client) or {@code nio} (event loops).
+     */
+    private static final String mode = System.getProperty("server.mode", "blocking");
+
+    /** The number of event-loop threads used in {@code nio} mode. */
+    private static final int eventLoopCount = Integer.getInteger("server.eventLoops", Runtime.getRuntime().availableProcessors());
 
-    /** Random number generator for price generation. */
-    private static final Random random = new Random();
+    /**
+     * The number of clients served at the same time; later connections are refused until one leaves. Each
+     * client takes two threads in {@code blocking} mode, so the default is lower in that mode. At most
+     * {@link ConnectedClients#MAX_CLIENTS}.
+     */
+    private static final int maxClients = Integer.getInteger("server.maxClients", mode.equals("blocking") ? 1000 : 10_000);
+
+    /** The number of connections the operating system queues until they are accepted, at most its own limit. */
+    private static final int acceptBacklog = Integer.getInteger("server.acceptBacklog", 128);
+
+    /** The number of threads accepting connections, each handing them to its own shard of the event loops. */
+    private static final int acceptorCount = Math.max(1, Integer.getInteger("server.acceptors", 1));
+
+    /**
+     * Whether each acceptor listens on its own socket bound with {@code SO_REUSEPORT}, where the kernel supports
+     * it, instead of sharing a single listening socket.
+     */
+    private static final boolean reusePort = Boolean.getBoolean("server.reusePort");
+
+    /**
+     * The number of threads sending the prices to the clients in {@code blocking} and {@code virtual} modes, each
+     * owning a shard of the clients. In {@code nio} mode each event loop sends the prices to its own clients.
+     */
+    private static final int broadcastShardCount =
+            Math.max(1, Integer.getInteger("server.broadcastShards", Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * The number of prices the price generator may publish ahead of the slowest broadcaster, rounded up to a
+     * power of two.
+     */
+    private static final int tickRingSize = Integer.getInteger("server.tickRing", 4096);
+
+    /** The number of prices that can wait for a slow client. */
+    private static final int outboundQueueSize = Integer.getInteger("server.outboundQueue", 64);
+
+    /** The number of replies that can wait for a client, which is disconnected beyond. */
+    private static final int outboundReplies = Integer.getInteger("server.outboundReplies", 1024);
+
+    /** What happens to a client whose outbound queue is full: {@code drop-oldest}, {@code conflate} or {@code disconnect}. */
+    private static final OutboundQueue.Policy backpressure =
+            OutboundQueue.Policy.of(System.getProperty("server.backpressure", "drop-oldest"));
+
+    /**
+     * How long, in milliseconds, the frames for a client may wait for more frames to be written with them.
+     * With 0, the frames queued when a client is written to are still written together, without waiting.
+     */
+    private static final long maxBatchDelayNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong("server.maxBatchDelay", 0));
+
+    /** The path of the log recording the prices and the client messages, {@code null} to not record them. */
+    private static final String recordPath = System.getProperty("server.record");
+
+    /** The path of a recording to replay instead of serving clients, {@code null} to serve clients. */
+    private static final String replayPath = System.getProperty("server.replay");
+
+    /** How many times faster than recorded a recording is replayed, 0 for as fast as possible. */
+    private static final double replaySpeed = Double.parseDouble(System.getProperty("server.replaySpeed", "1"));
+
+    /** The directory of the journal persisting the filled purchases, {@code null} to not persist them. */
+    private static final String journalPath = System.getProperty("server.journal");
+
+    /** The size of a segment of the trade journal, in MiB. */
+    private static final long journalSegmentSize = Long.getLong("server.journalSegmentSize", 64) << 20;
+
+    /** The time between two forces of the trade journal to the disk, in milliseconds. */
+    private static final long journalFlushInterval = Long.getLong("server.journalFlushInterval", 10);
+
+    /**
+     * Whether the connections of the {@code nio} mode read and write pooled direct buffers, into which the prices
+     * are copied instead of being written through views of their own.
+     */
+    private static final boolean garbageFree = Boolean.getBoolean("server.garbageFree");
+
+    /**
+     * The direct buffers of the connections in garbage-free mode, {@code null} otherwise. Each connection holds a
+     * read and a write buffer, so the pool keeps two per client.
+     */
+    private static final BufferPool bufferPool = garbageFree ? new BufferPool(IO_BUFFER_SIZE, 2 * maxClients) : null;
 
-    /** List of PrintWriters for communicating with connected clients. */
-    private static final List<PrintWriter> clientWriters = new ArrayList<>();
+    /** The local port serving the metrics over HTTP, 0 to not serve them. */
+    private static final int metricsPort = Integer.getInteger("server.metricsPort", 0);
+
+    /**
+     * The source of the random prices, from the {@code server.random} splittable algorithm. Setting
+     * {@code server.seed} generates the same prices on every run.
+     */
+    private static final PriceSource prices =
+            PriceSource.of(System.getProperty("server.random", "L64X128MixRandom"), Long.getLong("server.seed"));
+
+    /**
+     * Set of subscribers for communicating with connected clients, to report their backlogs and close them.
+     * <p>The set is concurrent, so registering a client costs the acceptors the same whatever the number of
+     * clients, and it can be iterated over without taking any lock. Prices are sent through the
+     * {@link BroadcastShard}s owning the clients, not through this set.</p>
+     */
+    private static final Set<Subscriber> clientWriters = ConcurrentHashMap.newKeySet();
+
+    /** The shards sending the prices to the clients: one per event loop in {@code nio} mode. */
+    private static BroadcastShard[] broadcastShards;
+
+    /** The ring handing the prices from the price generator to the broadcasters. */
+    private static TickRing tickRing;
+
+    /** The engine running the auctions. */
+    private static AuctionEngine auctions;
+
+    /** The engine arbitrating the purchase requests. */
+    private static MatchingEngine matching;
+
+    /** The counters of the work of the server, exposed with the other metrics. */
+    private static final ServerMetrics metrics = new ServerMetrics();
+
+    /** The tracker measuring the latency from the generation of a price to the purchase requests answering it. */
+    private static LatencyTracker latency;
+
+    /** The recorder journaling the prices and the client messages, {@code null} if they are not recorded. */
+    private static Recorder recorder;
+
+    /** The journal persisting the filled purchases, {@code null} if they are not persisted. */
+    private static TradeJournal journal;
+
+    /** The HTTP server exposing the metrics, {@code null} if they are not served. */
+    private static MetricsServer metricsServer;
+
+    /**
+     * The executor running a {@link ClientHandler} and a {@link WriterSubscriber} per client in {@code blocking}
+     * and {@code virtual} modes. In {@code blocking} mode, it is a pool of platform threads, limited by
+     * {@link #handlerSlots}.
+     */
+    private static ExecutorService handlerExecutor;
+
+    /**
+     * The threads of the pool a new client may still take in {@code blocking} mode, two per admitted client,
+     * {@code null} in the other modes. A client takes both before either of its tasks starts, and each task gives
+     * its thread back when it ends, so that a busy reply is only written to a socket no task owns yet.
+     */
+    private static Semaphore handlerSlots;
+
+    /** The event loops serving the clients in {@code nio} mode, {@code null} otherwise. */
+    private static EventLoop[] eventLoops;
+
+    /** The identifier of the next client to connect. */
+    private static final AtomicInteger nextClientId = new AtomicInteger();
+
+    /** Set once the price generation thread is started. */
+    private static final AtomicBoolean pricesStarted = new AtomicBoolean();
 
     /** Thread for generating prices. */
     private static Thread t1;
@@ -39,8 +262,8 @@ public class Server {
     /** A flag to control the running state of the server. Defined as volatile since it may be modified by different threads. */
     private static volatile boolean running;
 
-    /** The server socket for listening to client connections. */
-    private static ServerSocket serverSocket;
+    /** The server sockets listening to client connections: one per acceptor with {@code SO_REUSEPORT}, else one. */
+    private static ServerSocket[] listeners;
 
     /**
      * The main method initializes the server, listens for client connections,
@@ -50,10 +273,50 @@ public class Server {
      */
     public static void main( final String[] args) {
 
+        if (replayPath != null) {
+            Replay.run(Path.of(replayPath), replaySpeed);
+            return;
+        }
+        if (maxClients > ConnectedClients.MAX_CLIENTS) {
+            throw new IllegalArgumentException("server.maxClients must be at most " + ConnectedClients.MAX_CLIENTS);
+        }
+
         try {
 
-            serverSocket = new ServerSocket(port);
-            System.out.println("Waiting for connection...");
+            if (mode.equals("nio")) {
+                eventLoops = new EventLoop[eventLoopCount];
+                for (int i = 0; i < eventLoops.length; i++) {
+                    eventLoops[i] = new EventLoop(i, maxBatchDelayNanos);
+                    new Thread(eventLoops[i], "event-loop-" + i).start();
+                }
+            } else {
+                //virtual threads are scheduled on a bounded pool of carrier threads, which can be sized with
+                //the jdk.virtualThreadScheduler.parallelism and jdk.virtualThreadScheduler.maxPoolSize properties;
+                //platform threads are pooled, so a burst of reconnections reuses the threads of the clients that left;
+                //the pool itself is not bounded, since a thread that ended its task is not back in the pool at once
+                if (mode.equals("virtual")) {
+                    handlerExecutor = Executors.newVirtualThreadPerTaskExecutor();
+                } else {
+                    handlerSlots = new Semaphore(2 * maxClients);
+                    handlerExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                            Thread.ofPlatform().name("client-", 0).factory());
+                }
+            }
+            listeners = listen();
+            Log.info("Waiting for connection...");
+
+            if (recordPath != null) {
+                try {
+                    recorder = new Recorder(Path.of(recordPath), lotCount, lotInterval);
+                    //keeps the end of the recording if the server is killed
+                    Runtime.getRuntime().addShutdownHook(new Thread(recorder::close, "recorder-close"));
+                    Log.info("Recording to {}", recordPath);
+                } catch (IOException e) {
+                    Log.warn("Failed to record to {}: {}", recordPath, e.getMessage());
+                }
+            }
+
+            startAuctions(lotCount, lotInterval);
 
             //thread to generate prices
             t1 = new Thread(Server::generatePrice);
@@ -61,90 +324,617 @@ public class Server {
             //object to keep track of connected clients
             nClients = new ConnectedClients();
 
+            if (metricsPort != 0) {
+                try {
+                    metricsServer = new MetricsServer(metricsPort, Server::writeMetrics);
+                    Log.info("Serving metrics on port {}", metricsPort);
+                } catch (IOException e) {
+                    Log.warn("Failed to serve metrics on port {}: {}", metricsPort, e.getMessage());
+                }
+            }
+
             //initial state of the server set to running
             running = true;
 
-            while (running) {
-                try {
+            //each acceptor takes connections from its listener, or from the shared one, and hands them to its shard
+            //of the event loops; the main thread is the first acceptor
+            Thread[] acceptors = new Thread[acceptorCount];
+            for (int i = 1; i < acceptors.length; i++) {
+                ServerSocket listener = listeners[i % listeners.length];
+                EventLoop[] shard = shard(i);
+                acceptors[i] = new Thread(() -> accept(listener, shard), "acceptor-" + i);
+                acceptors[i].start();
+            }
+            accept(listeners[0], shard(0));
+            for (int i = 1; i < acceptors.length; i++) {
+                acceptors[i].join();
+            }
+
+            //function to stop server
+            stopServer();
+
+        } catch (IOException e) {
+            Log.warn("Failed to listen on port {}: {}", port, e.getMessage());
+        } catch (InterruptedException e) {
+            Log.warn("Server interrupted: {}", e.getMessage());
+        }
+
+    }
 
-                    //server is listening to connections
-                    Socket clientSocket = serverSocket.accept();
+    /**
+     * Opens the listening sockets: one per acceptor with {@code SO_REUSEPORT}, so that the kernel spreads the
+     * incoming connections over them, or else a single one shared by every acceptor.
+     *
+     * @return the bound listening sockets, in blocking mode.
+     * @throws IOException if the port cannot be bound.
+     */
+    private static ServerSocket[] listen() throws IOException {
+        ServerSocket first = newListener();
+        boolean shared = !reusePort || acceptorCount == 1;
+        if (!shared && !first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+            Log.warn("SO_REUSEPORT is not supported, the acceptors share one listening socket");
+            shared = true;
+        }
+        ServerSocket[] sockets = new ServerSocket[shared ? 1 : acceptorCount];
+        for (int i = 0; i < sockets.length; i++) {
+            sockets[i] = i == 0 ? first : newListener();
+            if (!shared) {
+                sockets[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            sockets[i].bind(new InetSocketAddress(port), acceptBacklog);
+        }
+        return sockets;
+    }
 
-                    //increases the ConnectedClients count after each connection
-                    nClients.increase();
+    /**
+     * Creates an unbound listening socket. Event loops need the channel of the accepted sockets, which only a
+     * listener created from a {@link ServerSocketChannel} gives.
+     *
+     * @return the listening socket, in blocking mode.
+     * @throws IOException if the socket cannot be created.
+     */
+    private static ServerSocket newListener() throws IOException {
+        return eventLoops != null ? ServerSocketChannel.open().socket() : new ServerSocket();
+    }
 
-                    //starts a thread to handle each client concurrently
-                    new Thread(new ClientHandler(clientSocket)).start();
+    /**
+     * Gets the event loops served by an acceptor: every {@code server.acceptors}-th loop starting at its
+     * index, or a single loop when there are fewer loops than acceptors.
+     *
+     * @param acceptor the index of the acceptor.
+     * @return the event loops of the acceptor, {@code null} if the clients are not served by event loops.
+     */
+    private static EventLoop[] shard(int acceptor) {
+        if (eventLoops == null) {
+            return null;
+        }
+        if (eventLoops.length <= acceptorCount) {
+            return new EventLoop[] {eventLoops[acceptor % eventLoops.length]};
+        }
+        EventLoop[] shard = new EventLoop[(eventLoops.length - acceptor + acceptorCount - 1) / acceptorCount];
+        for (int i = 0; i < shard.length; i++) {
+            shard[i] = eventLoops[acceptor + i * acceptorCount];
+        }
+        return shard;
+    }
 
-                    System.out.println("Client " + nClients.getCount() + " connected to " + clientSocket.getRemoteSocketAddress());
+    /**
+     * Accepts connections until the server stops, and starts serving each of them. Run by every acceptor.
+     *
+     * @param listener the socket accepting the connections, possibly shared with other acceptors.
+     * @param shard the event loops receiving the connections in {@code nio} mode, {@code null} otherwise.
+     */
+    private static void accept(ServerSocket listener, EventLoop[] shard) {
+        //index of the event loop of the shard that receives the next connection
+        int nextEventLoop = 0;
 
-                    //creates a PrinterWriter object for each client
-                    synchronized (clientWriters) {
-                        clientWriters.add(new PrintWriter(clientSocket.getOutputStream(), true));
-                    }
+        while (running) {
+            Socket clientSocket;
+            try {
+                //server is listening to connections
+                clientSocket = listener.accept();
+            } catch (IOException e) {
+                //the listeners are closed once the last client has left
+                if (running) {
+                    Log.warn("Stopped accepting connections on {}: {}", listener.getLocalSocketAddress(), e.getMessage());
+                }
+                return;
+            }
 
-                    // Start generating and sending prices when at least 2 clients are connected
-                    if (nClients.getCount() == 2) {
-                        t1.start();
-                    }
+            //the threads of the clients that just left may not have ended yet
+            if (handlerSlots != null && !handlerSlots.tryAcquire(2)) {
+                rejectBusy(clientSocket);
+                continue;
+            }
 
-                } catch (IOException e) {
-                    //function to stop server
-                    stopServer();
+            //increases the ConnectedClients count after each connection, unless the server is full, in which
+            //case the client is turned away before spending anything on it
+            int count = nClients.connect(maxClients);
+            if (count == 0) {
+                releaseHandlerSlots(2);
+                rejectBusy(clientSocket);
+                continue;
+            }
+            int id = nextClientId.getAndIncrement();
+
+            Subscriber subscriber = null;
+            try {
+                if (shard != null) {
+                    //hands the connection over to an event loop, which serves it without a dedicated thread
+                    SocketChannel channel = clientSocket.getChannel();
+                    channel.configureBlocking(false);
+                    EventLoop loop = shard[nextEventLoop];
+                    nextEventLoop = (nextEventLoop + 1) % shard.length;
+                    NioConnection connection = new NioConnection(id, channel, loop, new OutboundQueue(outboundQueueSize, outboundReplies, backpressure), bufferPool);
+                    recordConnection(connection);
+                    subscriber = connection;
+                    join(subscriber);
+                    loop.register(connection);
+                } else {
+                    //creates a writer for each client, drained by its own writer thread
+                    WriterSubscriber writer = new WriterSubscriber(id, clientSocket, new OutboundQueue(outboundQueueSize, outboundReplies, backpressure));
+                    recordConnection(writer);
+                    subscriber = writer;
+                    join(subscriber);
+                    try {
+                        handlerExecutor.execute(releasingSlot(writer));
+                    } catch (RejectedExecutionException e) {
+                        //the server is stopping; no thread owns the socket yet
+                        releaseHandlerSlots(2);
+                        clientDisconnected(subscriber, ConnectedClients.State.CONNECTING);
+                        try {
+                            clientSocket.close();
+                        } catch (IOException ignored) {
+                            //the connection is dropped anyway
+                        }
+                        continue;
+                    }
+                    try {
+                        //starts a thread to handle each client concurrently
+                        handlerExecutor.execute(releasingSlot(new ClientHandler(clientSocket, subscriber)));
+                    } catch (RejectedExecutionException e) {
+                        //the server is stopping; the writer thread closes the socket once its queue is closed
+                        releaseHandlerSlots(1);
+                        clientDisconnected(subscriber, ConnectedClients.State.CONNECTING);
+                        continue;
+                    }
+                }
+            } catch (IOException e) {
+                //the connection failed before it was served
+                Log.warn("Failed to serve {}: {}", clientSocket.getRemoteSocketAddress(), e.getMessage());
+                if (subscriber != null) {
+                    auctions.unsubscribeAll(subscriber);
+                    clientWriters.remove(subscriber);
                 }
+                releaseHandlerSlots(2);
+                try {
+                    clientSocket.close();
+                } catch (IOException ignored) {
+                    //the connection is dropped anyway
+                }
+                if (nClients.disconnect(ConnectedClients.State.CONNECTING) == 0) {
+                    stopListening();
+                }
+                continue;
+            }
+
+            Log.info("Client {} connected to {}", count, clientSocket.getRemoteSocketAddress());
 
+            // Start generating and sending prices when at least 2 clients are connected
+            if (count >= 2 && pricesStarted.compareAndSet(false, true)) {
+                t1.start();
             }
+        }
+    }
 
+    /**
+     * Wraps a task of a client so that it gives its thread back to {@link #handlerSlots} when it ends.
+     *
+     * @param task the task.
+     * @return the task to execute.
+     */
+    private static Runnable releasingSlot(Runnable task) {
+        if (handlerSlots == null) {
+            return task;
+        }
+        return () -> {
+            try {
+                task.run();
+            } finally {
+                handlerSlots.release();
+            }
+        };
+    }
+
+    /**
+     * Gives back threads taken from {@link #handlerSlots} for tasks that never started.
+     *
+     * @param count the number of threads.
+     */
+    private static void releaseHandlerSlots(int count) {
+        if (handlerSlots != null) {
+            handlerSlots.release(count);
+        }
+    }
+
+    /**
+     * Adds a new client to the connected clients and subscribes it to lot 0. Called before the client is served,
+     * so that an early unsubscription or disconnection of the client is never undone by this call.
+     *
+     * @param subscriber the new client.
+     */
+    private static void join(Subscriber subscriber) {
+        clientWriters.add(subscriber);
+        auctions.subscribe(0, subscriber);
+    }
+
+    /**
+     * Refuses a connection: answers it with {@link Protocol#SERVER_BUSY} and closes it. Called by the accepting
+     * thread; the line fits in the empty send buffer of the new socket, so the write does not wait for the client.
+     *
+     * @param socket the connection refused.
+     */
+    private static void rejectBusy(Socket socket) {
+        metrics.rejectedConnection();
+        try (socket) {
+            socket.getOutputStream().write(Protocol.serverBusyLine());
+            //sends the end of the stream after the line, so the client reads it before the connection is reset
+            socket.shutdownOutput();
         } catch (IOException e) {
-            System.out.println("Failed to listen on port " + port + ": " + e.getMessage());
+            //the client is turned away anyway
+        }
+        Log.info("Server busy, refused {}", socket.getRemoteSocketAddress());
+    }
+
+    /**
+     * Creates the auctions, whose prices are generated by the price thread, and starts the threads selling their lots.
+     *
+     * @param lots the number of lots.
+     * @param interval the number of ticks between two prices of a lot.
+     */
+    static void startAuctions(int lots, int interval) {
+        if (journalPath != null) {
+            try {
+                journal = new TradeJournal(Path.of(journalPath), journalSegmentSize, journalFlushInterval);
+                Log.info("Journaling trades to {}", journalPath);
+            } catch (IOException e) {
+                Log.warn("Failed to open trade journal {}: {}", journalPath, e.getMessage());
+            }
+        }
+        matching = new MatchingEngine(lots, matcherCount, matcherQueueSize, lotInventory, matchPolicy, journal);
+        matching.start();
+        latency = new LatencyTracker();
+        tickRing = new TickRing(tickRingSize);
+        if (eventLoops != null) {
+            broadcastShards = new BroadcastShard[eventLoops.length];
+            for (int i = 0; i < eventLoops.length; i++) {
+                broadcastShards[i] = eventLoops[i].shard();
+            }
+        } else {
+            broadcastShards = new BroadcastShard[broadcastShardCount];
+            for (int i = 0; i < broadcastShards.length; i++) {
+                broadcastShards[i] = BroadcastShard.start(i);
+            }
         }
+        for (BroadcastShard shard : broadcastShards) {
+            shard.follow(tickRing);
+        }
+        auctions = new AuctionEngine(lots, interval, prices, matching, latency, recorder, tickRing, broadcastShards);
+    }
+
+    /**
+     * Gets the engine running the auctions.
+     *
+     * @return the engine, {@code null} before the auctions are started.
+     */
+    static AuctionEngine auctions() {
+        return auctions;
+    }
+
+    /**
+     * Gets the engine arbitrating the purchase requests.
+     *
+     * @return the engine, {@code null} before the auctions are started.
+     */
+    static MatchingEngine matching() {
+        return matching;
+    }
+
+    /**
+     * Records a new client, before it can send any message, if the server is recording.
+     *
+     * @param subscriber the client.
+     */
+    private static void recordConnection(Subscriber subscriber) {
+        if (recorder != null) {
+            recorder.connected(subscriber);
+        }
+    }
+
+    /**
+     * Appends the metrics of the server in the Prometheus text exposition format. Called by the {@link MetricsServer}.
+     *
+     * @param out the builder receiving the metrics.
+     */
+    static void writeMetrics(StringBuilder out) {
+        metrics.writeTo(out, nClients.snapshot(), clientWriters);
+        latency.writeMetrics(out);
+        tickRing.writeMetrics(out);
+    }
 
+    /**
+     * Gets the counters of the work of the server, which the threads serving the clients keep up to date.
+     *
+     * @return the counters.
+     */
+    static ServerMetrics metrics() {
+        return metrics;
     }
 
     /**
-     * This method generates random prices between 10 and 100.
-     * It sends these prices to all connected clients every {@code sleeptime} milliseconds.
+     * This method drives the auctions {@code tickRate} times per second. On each tick the lots due generate
+     * random prices between 10 and 100 and publish them to the {@link TickRing}, from which the broadcasters
+     * send them to their subscribers on their own threads.
+     * It periodically reports the achieved rate against the target rate.
      */
     public static void generatePrice() {
+        TickPacer pacer = new TickPacer(tickRate);
+        long reportIntervalNanos = rateReportInterval * 1_000_000_000;
+        long lastReportTime = System.nanoTime();
+        long lastReportTicks = 0;
         try {
             //while there are clients connected
             while (nClients.getCount() != 0) {
-                //generates int between 10 and 100
-                int price = 10 + random.nextInt(91);
-                System.out.println("Offered price: " + price);
-
-                //sends the generated price to all connected client
-                synchronized (clientWriters) {
-                    for (PrintWriter writer : clientWriters) {
-                        writer.println(price);
+                //waits until the next tick is due
+                pacer.awaitNextTick();
+
+                //the lots due encode their price once and send the same frame to their subscribers,
+                //none of the subscribers blocks on its socket
+                auctions.advance();
+                metrics.tick();
+
+                long now = System.nanoTime();
+                if (now - lastReportTime >= reportIntervalNanos) {
+                    double achievedRate = (pacer.ticks() - lastReportTicks) * 1e9 / (now - lastReportTime);
+                    ConnectedClients.Snapshot clients = nClients.snapshot();
+                    if (Log.isEnabled(Log.Level.INFO)) {
+                        Log.info(String.format("Tick rate: %.1f/s achieved, %.1f/s target; clients: %d connecting, %d active, %d finished",
+                                achievedRate, pacer.targetRate(), clients.connecting(), clients.active(), clients.finished()));
                     }
+                    lastReportTime = now;
+                    lastReportTicks = pacer.ticks();
                 }
-
-                //thread pauses
-                Thread.sleep(sleeptime);
             }
         } catch (InterruptedException e) {
-            System.out.println("Stopped generating prices");
+            Log.info("Stopped generating prices");
+        }
+    }
+
+    /**
+     * Handles a single text message received from a client, as a {@link String}. Used to replay recordings.
+     *
+     * @param message the line sent by the client.
+     * @param subscriber the client that sent the message.
+     * @return {@code true} if the client finished purchasing and its connection should be closed.
+     */
+    static boolean handleMessage(String message, Subscriber subscriber) {
+        ByteBuffer line = ByteBuffer.wrap(message.getBytes(StandardCharsets.ISO_8859_1));
+        return handleLine(line, 0, line.limit(), new Protocol.Request(), subscriber);
+    }
+
+    /**
+     * Handles a single text message received from a client, decoded in place. Shared by every way of serving a
+     * connection; nothing is allocated unless the message is recorded or invalid.
+     *
+     * @param buffer the buffer holding the line.
+     * @param from the index of the first character.
+     * @param to the index following the last character, without the terminator.
+     * @param request the request the line is decoded into, reused by the caller from one line to the next.
+     * @param subscriber the client that sent the message.
+     * @return {@code true} if the client finished purchasing and its connection should be closed.
+     */
+    static boolean handleLine(ByteBuffer buffer, int from, int to, Protocol.Request request, Subscriber subscriber) {
+        if (recorder != null) {
+            recorder.line(subscriber, buffer, from, to);
+        }
+        try {
+            Protocol.decodeLine(buffer, from, to, request);
+        } catch (NumberFormatException e) {
+            Log.warn("Invalid message from {}: {}", subscriber, Ascii.toString(buffer, from, to));
+            return false;
+        }
+        switch (request.type) {
+            case Protocol.PURCHASE:
+                if (request.tagged) {
+                    handlePurchase(request.lot, request.price, request.bid, LatencyTracker.NO_SEQUENCE, subscriber);
+                } else {
+                    handleUntaggedPurchase(subscriber);
+                }
+                return false;
+            case Protocol.FINISHED:
+                Log.info("Client {} finished purchasing", subscriber);
+                return true;
+            case Protocol.SUBSCRIBE_LOT:
+            case Protocol.UNSUBSCRIBE_LOT:
+                handleSubscription(request.type == Protocol.SUBSCRIBE_LOT, request.lot, subscriber);
+                return false;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Handles a single binary frame received from a client. Shared by every way of serving a connection.
+     *
+     * @param type the type of the frame.
+     * @param payload the bytes following the type, between the position and the limit of the buffer.
+     * @param subscriber the client that sent the frame.
+     * @return {@code true} if the client finished purchasing and its connection should be closed.
+     */
+    static boolean handleFrame(byte type, ByteBuffer payload, Subscriber subscriber) {
+        if (recorder != null) {
+            recorder.frame(subscriber, type, payload);
+        }
+        switch (type) {
+            case Protocol.PURCHASE:
+                if (payload.remaining() >= 3 * Integer.BYTES) {
+                    int lot = payload.getInt();
+                    int price = payload.getInt();
+                    int bid = payload.getInt();
+                    int sequence = payload.remaining() >= Integer.BYTES ? payload.getInt() : LatencyTracker.NO_SEQUENCE;
+                    handlePurchase(lot, price, bid, sequence, subscriber);
+                } else {
+                    handleUntaggedPurchase(subscriber);
+                }
+                return false;
+            case Protocol.FINISHED:
+                Log.info("Client {} finished purchasing", subscriber);
+                return true;
+            case Protocol.SUBSCRIBE_LOT:
+            case Protocol.UNSUBSCRIBE_LOT:
+                if (payload.remaining() >= Integer.BYTES) {
+                    handleSubscription(type == Protocol.SUBSCRIBE_LOT, payload.getInt(), subscriber);
+                }
+                return false;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Switches a client to the binary protocol at its request. Shared by every way of serving a connection.
+     *
+     * @param subscriber the client that asked for binary frames.
+     */
+    static void useBinaryProtocol(Subscriber subscriber) {
+        if (recorder != null) {
+            recorder.binaryHello(subscriber);
+        }
+        subscriber.useBinaryProtocol();
+    }
+
+    /**
+     * Submits an untagged purchase request, which buys lot 0 at its current price and gets no reply.
+     *
+     * @param subscriber the client.
+     */
+    private static void handleUntaggedPurchase(Subscriber subscriber) {
+        metrics.purchaseRequest();
+        Log.info("Purchase request received from: {}", subscriber);
+        auctions.purchase(0, MatchingEngine.CURRENT_PRICE, 0, LatencyTracker.NO_SEQUENCE, subscriber, false);
+    }
+
+    /**
+     * Submits a tagged purchase request to the matching engine, which replies with a fill or a reject.
+     *
+     * @param lot the identifier of the lot.
+     * @param price the price the request answers.
+     * @param bid the highest price the client is willing to pay.
+     * @param sequence the sequence number of the offer echoed by the client, or {@link LatencyTracker#NO_SEQUENCE}.
+     * @param subscriber the client.
+     */
+    private static void handlePurchase(int lot, int price, int bid, int sequence, Subscriber subscriber) {
+        metrics.purchaseRequest();
+        Log.info("Purchase request received from: {} for lot {} at {}", subscriber, lot, price);
+        if (!auctions.purchase(lot, price, bid, sequence, subscriber, true)) {
+            subscriber.send(PriceFrame.rejected(lot, price));
+        }
+    }
+
+    /**
+     * Subscribes a client to a lot or unsubscribes it.
+     *
+     * @param subscribe {@code true} to subscribe, {@code false} to unsubscribe.
+     * @param lot the identifier of the lot.
+     * @param subscriber the client.
+     */
+    private static void handleSubscription(boolean subscribe, int lot, Subscriber subscriber) {
+        boolean known = subscribe ? auctions.subscribe(lot, subscriber) : auctions.unsubscribe(lot, subscriber);
+        if (!known) {
+            Log.warn("Client {} asked for unknown lot {}", subscriber, lot);
+        }
+    }
+
+    /**
+     * Gets the counts of connected clients, which the threads serving the clients keep up to date.
+     *
+     * @return the counts of connected clients.
+     */
+    static ConnectedClients connectedClients() {
+        return nClients;
+    }
+
+    /**
+     * Removes a client that disconnected. Stops the server when no clients are left.
+     *
+     * @param subscriber the client that disconnected.
+     * @param state the state of the client when it disconnected.
+     */
+    static void clientDisconnected(Subscriber subscriber, ConnectedClients.State state) {
+        if (recorder != null) {
+            recorder.disconnected(subscriber);
+        }
+        auctions.unsubscribeAll(subscriber);
+        latency.remove(subscriber);
+        clientWriters.remove(subscriber);
+        subscriber.close();
+
+        //if a client disconnects remove it from ConnectedClients count
+        int remaining = nClients.disconnect(state);
+        Log.info("Connection to client: {} closed", subscriber);
+
+        //check if there are clients left, if no clients are left stops the server from running
+        if (remaining == 0) {
+            stopListening();
+        }
+    }
+
+    /**
+     * Stops the server from running once no client is left: closes the listening sockets, so that the
+     * acceptors return and the main thread stops the server.
+     */
+    private static void stopListening() {
+        running = false;
+        for (ServerSocket listener : listeners) {
+            try {
+                //closing server socket
+                listener.close();
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
         }
     }
 
     /**
      * {@code ClientHandler} handles the communication with a single client.
-     * It listens for messages from the client, such as "Purchase request" or "Finished purchasing".
+     * It listens for messages from the client, such as "Purchase request" or "Finished purchasing",
+     * either as text lines or as binary frames once the client asked for the binary {@link Protocol}.
      */
     public static class ClientHandler implements Runnable {
         private final Socket client; /** The socket connected to the client. */
 
-        //each client can send messages to the server with individual BufferedReader objects
-        BufferedReader in;
+        private final Subscriber subscriber; /** The subscriber sending prices to the client. */
+
+        //each client can send messages to the server with individual input streams
+        DataInputStream in;
+
+        //the payload of the last binary frame, reused for every frame
+        private final ByteBuffer payload = ByteBuffer.allocate(255);
+
+        //the last text line and its decoding, reused for every line
+        private final ByteBuffer line = ByteBuffer.allocate(Protocol.MAX_LINE_LENGTH);
+
+        private final Protocol.Request request = new Protocol.Request();
 
         /**
          * Constructs a {@code ClientHandler} with a specific client socket.
          *
          * @param client the socket connected to the client.
+         * @param subscriber the subscriber sending prices to the client.
          */
-        public ClientHandler(Socket client) {
+        public ClientHandler(Socket client, Subscriber subscriber) {
             this.client = client;
+            this.subscriber = subscriber;
         }
 
         /**
@@ -152,106 +942,353 @@ public class Server {
          */
         @Override
         public void run() {
+            ConnectedClients.State state = ConnectedClients.State.ACTIVE;
+            nClients.move(ConnectedClients.State.CONNECTING, state);
             try {
-                in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+                in = new DataInputStream(new BufferedInputStream(client.getInputStream()));
 
+                //handles client based on received messages until the client closes the connection
+                boolean binary = false;
+                while (true) {
+                    boolean finished;
+                    if (binary) {
+                        int length = in.read();
+                        if (length <= 0) {
+                            break;
+                        }
+                        byte type = in.readByte();
+                        payload.clear().limit(length - 1);
+                        in.readFully(payload.array(), 0, length - 1);
+                        finished = handleFrame(type, payload, subscriber);
+                    } else {
+                        if (!Protocol.readLine(in, line)) {
+                            break;
+                        }
+                        if (Protocol.isBinaryHello(line, 0, line.limit())) {
+                            binary = true;
+                            useBinaryProtocol(subscriber);
+                            continue;
+                        }
+                        finished = handleLine(line, 0, line.limit(), request, subscriber);
+                    }
 
-                //handles client based on received messages
-                while (client.isConnected()) {
-                    String message = in.readLine();
-                    if (message.equals("Purchase request")) {
-                        System.out.println("Purchase request received from: " + client);
-                    } else if (message.equals("Finished purchasing")) {
-                        System.out.println("Client " + client + " finished purchasing");
+                    if (finished) {
+                        nClients.move(state, ConnectedClients.State.FINISHED);
+                        state = ConnectedClients.State.FINISHED;
                         in.close();
                         client.close();
+                        break;
                     }
                 }
             } catch (IOException e) {
-                //if a client disconnects remove it from ConnectedClients count
-                nClients.decrease();
-                System.out.println("Connection to client: " + client + " closed");
+                //the connection was closed while reading
+            }
+            clientDisconnected(subscriber, state);
+        }
+    }
 
-                //check if there are clients left, if no clients are left stops the server from running
-                if (nClients.getCount() == 0) {
-                    running = false;
-                    try {
-                        //closing server socket
-                        serverSocket.close();
-                    } catch (IOException ex) {
-                        throw new RuntimeException(ex);
+    /**
+     * {@code WriterSubscriber} sends prices to a client served by a {@link ClientHandler} thread.
+     *
+     * <p>Prices are put in an {@link OutboundQueue} and written by a dedicated writer thread, so the price
+     * generator never waits on a slow client; the backpressure policy of the queue decides what happens to a
+     * client that falls behind. The writer thread buffers the frames it takes and sends them to the socket in
+     * one write once the queue is empty, after waiting up to {@code server.maxBatchDelay} for more frames, so
+     * a burst of ticks costs a single system call and usually a single TCP segment.</p>
+     */
+    public static class WriterSubscriber implements Subscriber, Runnable {
+
+        private static final int BATCH_SIZE = 8192; /** The number of bytes buffered before the stream is written regardless of the delay. */
+
+        private final OutputStream socketOut; /** The stream of the client socket, closed without flushing when the writer stops. */
+
+        private final OutputStream out; /** The buffered stream connected to the client socket. */
+
+        private final int id; /** The number identifying the client. */
+
+        private final String name; /** A description of the client socket for logging. */
+
+        private final OutboundQueue queue; /** Prices and replies waiting to be written. */
+
+        private volatile boolean binaryRequested; /** Set when the client asked for the binary protocol. */
+
+        /**
+         * Constructs a {@code WriterSubscriber} writing to the given socket.
+         *
+         * @param id the number identifying the client.
+         * @param client the socket connected to the client.
+         * @param queue the queue of the frames waiting to be written.
+         * @throws IOException if the output stream of the socket cannot be obtained.
+         */
+        public WriterSubscriber(int id, Socket client, OutboundQueue queue) throws IOException {
+            this.id = id;
+            this.socketOut = client.getOutputStream();
+            this.out = new BufferedOutputStream(socketOut, BATCH_SIZE);
+            this.name = client.toString();
+            this.queue = queue;
+        }
+
+        @Override
+        public int id() {
+            return id;
+        }
+
+        /**
+         * Queues a price for the writer thread. If the client lags too far behind, the writer thread stops
+         * and closes the stream.
+         *
+         * @param frame the encoded price offer.
+         */
+        @Override
+        public void send(PriceFrame frame) {
+            if (!queue.add(frame)) {
+                Log.warn("Disconnecting slow client {}", name);
+            }
+        }
+
+        /**
+         * Writes the queued prices to the client until the subscriber is closed or the connection fails.
+         */
+        @Override
+        public void run() {
+            try {
+                boolean binary = false;
+                while (true) {
+                    PriceFrame frame = queue.take();
+                    if (queue.isClosed()) {
+                        break;
+                    }
+                    //batches the frames arriving until the queue stays empty past the deadline
+                    long deadline = System.nanoTime() + maxBatchDelayNanos;
+                    do {
+                        //the acknowledgement goes out before the first binary frame, whatever was queued meanwhile
+                        if (binaryRequested && !binary) {
+                            byte[] ack = Protocol.binaryHelloLine();
+                            out.write(ack);
+                            metrics.sent(ack.length);
+                            binary = true;
+                        }
+                        if (frame != null) {
+                            metrics.sent(frame.writeTo(out, binary));
+                        }
+                    } while ((frame = queue.poll(deadline - System.nanoTime())) != null);
+                    if (queue.isClosed()) {
+                        break;
                     }
+                    out.flush();
+                    metrics.flushed();
                 }
-
-            } catch (Exception e) {
-                throw new RuntimeException(e);
+            } catch (IOException e) {
+                //the connection failed, the ClientHandler reports the disconnection
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            try {
+                socketOut.close();
+            } catch (IOException e) {
+                Log.warn("Failed to close writer: {}", e.getMessage());
             }
         }
+
+        /**
+         * Asks the writer thread to acknowledge the binary protocol before writing the next price.
+         */
+        @Override
+        public void useBinaryProtocol() {
+            binaryRequested = true;
+            queue.wakeUp();
+        }
+
+        /**
+         * Returns the number of prices waiting for the writer thread.
+         *
+         * @return the outbound backlog.
+         */
+        @Override
+        public int backlog() {
+            return queue.size();
+        }
+
+        /**
+         * Discards the queued prices and stops the writer thread, which then closes the stream.
+         */
+        @Override
+        public void close() {
+            queue.close();
+        }
+
+        /**
+         * Returns a description of the client for logging.
+         *
+         * @return the description of the client socket.
+         */
+        @Override
+        public String toString() {
+            return name;
+        }
     }
 
     /**
      * Stops the server, including stopping the price generation thread
-     * and closing all PrintWriter connections to clients.
+     * and closing all connections to clients.
      */
     public static void stopServer() {
 
         try {
-            System.out.println("Server is stopping...");
+            Log.info("Server is stopping...");
             // Interrupt the price generation thread
             if (t1 != null && t1.isAlive()) {
                 t1.interrupt();
                 t1.join(); // Wait for the thread to finish
             }
 
-            // Close all opened PrintWriters
-            synchronized (clientWriters) {
-                for (PrintWriter writer : clientWriters) {
-                    writer.close();
+            // Send the prices already generated, then stop the broadcast threads
+            if (broadcastShards != null) {
+                for (BroadcastShard shard : broadcastShards) {
+                    shard.shutdown();
+                    shard.awaitTermination();
                 }
             }
-            System.out.println("Server stopped.");
+
+            // Close all remaining client connections
+            for (Subscriber subscriber : clientWriters) {
+                subscriber.close();
+            }
+
+            // Stop the matchers once they have settled the requests already received
+            if (matching != null) {
+                matching.shutdown();
+                matching.awaitTermination();
+            }
+
+            // Force the trades settled by the matchers to the disk
+            if (journal != null) {
+                journal.close();
+                Log.info("Journaled {} trades", journal.trades());
+            }
+
+            // Stop accepting handler tasks, the running handlers end with their connections
+            if (handlerExecutor != null) {
+                handlerExecutor.shutdown();
+            }
+
+            // Write the end of the recording
+            if (recorder != null) {
+                recorder.close();
+            }
+
+            // Stop serving the metrics
+            if (metricsServer != null) {
+                metricsServer.stop();
+            }
+
+            // Stop the event loops
+            if (eventLoops != null) {
+                for (EventLoop loop : eventLoops) {
+                    loop.shutdown();
+                }
+            }
+            Log.info("Server stopped.");
 
         } catch (InterruptedException e) {
-            System.out.println("Server stop interrupted: " + e.getMessage());
+            Log.warn("Server stop interrupted: {}", e.getMessage());
         }
     }
 
     /**
      * This class manages the count of connected clients.
-     * It provides methods to increase, decrease, and get the client count.
+     * It keeps the number of clients in each {@link State} and provides methods to move clients between states,
+     * get the client count and take a consistent snapshot of all the counts.
+     *
+     * <p>The three counts are packed in a single {@link AtomicLong}, 21 bits each. Every change is one atomic
+     * addition, so threads never wait for a lock, every read sees the latest value, and a snapshot never mixes
+     * counts from before and after a change. The total number of accepted connections is kept in a
+     * {@link LongAdder}, since it is only ever incremented.</p>
      */
     public static class ConnectedClients {
-        private int count;
 
         /**
-         * Initializes the client count to 0.
+         * The state of a connected client.
          */
-        public ConnectedClients() {
-            count = 0;
+        public enum State {
+            /** Accepted, but not served yet. */
+            CONNECTING,
+            /** Served and receiving prices. */
+            ACTIVE,
+            /** Finished purchasing and waiting for its connection to close. */
+            FINISHED
         }
 
         /**
-         * Increases the number of connected clients by 1.
-         * <p>This method is synchronized to ensure that only one thread can
-         * modify the client count at a time. This prevents race conditions
-         * where multiple threads might attempt to increase the count simultaneously,
-         * potentially leading to an inconsistent or incorrect value.</p>
+         * A consistent view of the client counts.
+         *
+         * @param connecting the number of clients accepted but not served yet.
+         * @param active the number of clients served.
+         * @param finished the number of clients that finished purchasing and are disconnecting.
+         * @param accepted the total number of connections accepted since the server started.
          */
+        public record Snapshot(int connecting, int active, int finished, long accepted) {
 
-        public synchronized void increase() {
-            count++;
+            /**
+             * Gets the number of connected clients in any state.
+             *
+             * @return the number of connected clients.
+             */
+            public int total() {
+                return connecting + active + finished;
+            }
+        }
+
+        private static final int BITS = 21; /** The number of bits of each count. */
+
+        private static final long MASK = (1L << BITS) - 1; /** Mask extracting one count. */
+
+        static final int MAX_CLIENTS = (int) MASK; /** The most clients a count holds before it overflows into the next one. */
+
+        private final AtomicLong counts = new AtomicLong(); /** The packed counts of each state. */
+
+        private final LongAdder accepted = new LongAdder(); /** The total number of accepted connections. */
+
+        /**
+         * Counts a newly accepted client, in the {@link State#CONNECTING} state, unless the limit is reached.
+         * <p>The limit is checked by the same atomic operation, so concurrent acceptors never admit more clients.</p>
+         *
+         * @param limit the maximum number of connected clients.
+         * @return the number of connected clients, including the new one, or 0 if the client is not admitted.
+         */
+        public int connect(int limit) {
+            while (true) {
+                long packed = counts.get();
+                int total = total(packed);
+                if (total >= limit) {
+                    return 0;
+                }
+                if (counts.compareAndSet(packed, packed + unit(State.CONNECTING))) {
+                    accepted.increment();
+                    return total + 1;
+                }
+            }
         }
 
         /**
-         * Decreases the number of connected clients by 1.
-         * <p>This method is synchronized to ensure that only one thread can
-         * modify the client count at a time. This prevents race conditions
-         * where multiple threads might attempt to increase the count simultaneously,
-         * potentially leading to an inconsistent or incorrect value.</p>
+         * Moves a client from one state to another.
+         *
+         * @param from the current state of the client.
+         * @param to the new state of the client.
          */
+        public void move(State from, State to) {
+            counts.addAndGet(unit(to) - unit(from));
+        }
 
-        public synchronized void decrease() {
-            count--;
+        /**
+         * Removes a client that disconnected.
+         * <p>The remaining count is returned by the same atomic operation, so exactly one caller sees it drop to 0.</p>
+         *
+         * @param from the state of the client when it disconnected.
+         * @return the number of clients still connected.
+         */
+        public int disconnect(State from) {
+            return total(counts.addAndGet(-unit(from)));
         }
 
         /**
@@ -260,7 +1297,48 @@ public class Server {
          * @return the number of connected clients.
          */
         public int getCount() {
-            return count;
+            return total(counts.get());
+        }
+
+        /**
+         * Takes a consistent snapshot of the counts of each state.
+         *
+         * @return the snapshot.
+         */
+        public Snapshot snapshot() {
+            long packed = counts.get();
+            return new Snapshot(count(packed, State.CONNECTING), count(packed, State.ACTIVE), count(packed, State.FINISHED), accepted.sum());
+        }
+
+        /**
+         * Gets the amount to add to the packed counts for one client in a state.
+         *
+         * @param state the state.
+         * @return the packed unit of the state.
+         */
+        private static long unit(State state) {
+            return 1L << (state.ordinal() * BITS);
+        }
+
+        /**
+         * Extracts the count of a state.
+         *
+         * @param packed the packed counts.
+         * @param state the state.
+         * @return the count of the state.
+         */
+        private static int count(long packed, State state) {
+            return (int) ((packed >>> (state.ordinal() * BITS)) & MASK);
+        }
+
+        /**
+         * Adds up the counts of all states.
+         *
+         * @param packed the packed counts.
+         * @return the number of connected clients.
+         */
+        private static int total(long packed) {
+            return count(packed, State.CONNECTING) + count(packed, State.ACTIVE) + count(packed, State.FINISHED);
         }
     }
 }
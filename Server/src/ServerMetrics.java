@@ -0,0 +1,181 @@
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@code ServerMetrics} counts the work of the {@link Server} and writes it, with the state of the clients and
+ * of the JVM, in the Prometheus text exposition format served by the {@link MetricsServer}.
+ *
+ * <p>Activity is exposed as monotonic counters ({@code _total}), from which the scraper derives rates such as
+ * ticks, bytes or purchase requests per second, so that any number of scrapers get consistent rates over the
+ * windows they choose. Counters are {@link LongAdder}s, so the threads serving the clients never contend on
+ * them; they are only summed when scraped.</p>
+ */
+public class ServerMetrics {
+
+    /** The ticks of the price generator. */
+    private final LongAdder ticks = new LongAdder();
+
+    /** The bytes written to the clients. */
+    private final LongAdder bytesSent = new LongAdder();
+
+    /** The writes of batched frames to the client sockets. */
+    private final LongAdder flushes = new LongAdder();
+
+    /** The connections refused because the server was busy. */
+    private final LongAdder rejectedConnections = new LongAdder();
+
+    /** The purchase requests received. */
+    private final LongAdder purchaseRequests = new LongAdder();
+
+    /** The filled purchases the trade journal could not record. */
+    private final LongAdder lostTrades = new LongAdder();
+
+    /** The firings of each backpressure policy, indexed by ordinal. */
+    private final LongAdder[] backpressure = new LongAdder[OutboundQueue.Policy.values().length];
+
+    /**
+     * Constructs {@code ServerMetrics} with every counter at 0.
+     */
+    public ServerMetrics() {
+        for (int i = 0; i < backpressure.length; i++) {
+            backpressure[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Counts a tick of the price generator.
+     */
+    public void tick() {
+        ticks.increment();
+    }
+
+    /**
+     * Counts bytes written to a client.
+     *
+     * @param bytes the number of bytes.
+     */
+    public void sent(long bytes) {
+        bytesSent.add(bytes);
+    }
+
+    /**
+     * Counts a write of a batch of frames to a client socket.
+     */
+    public void flushed() {
+        flushes.increment();
+    }
+
+    /**
+     * Counts a connection refused because the server was busy.
+     */
+    public void rejectedConnection() {
+        rejectedConnections.increment();
+    }
+
+    /**
+     * Counts a purchase request.
+     */
+    public void purchaseRequest() {
+        purchaseRequests.increment();
+    }
+
+    /**
+     * Counts a filled purchase the trade journal could not record.
+     */
+    public void lostTrade() {
+        lostTrades.increment();
+    }
+
+    /**
+     * Counts the firings of a backpressure policy on a slow client.
+     *
+     * @param policy the policy that fired.
+     * @param count the number of offers dropped or conflated, or 1 for a disconnection.
+     */
+    public void backpressure(OutboundQueue.Policy policy, long count) {
+        backpressure[policy.ordinal()].add(count);
+    }
+
+    /**
+     * Appends the metrics of the server and of the JVM.
+     *
+     * @param out the builder receiving the metrics.
+     * @param clients the counts of connected clients.
+     * @param subscribers the connected clients, whose outbound backlogs are reported.
+     */
+    public void writeTo(StringBuilder out, Server.ConnectedClients.Snapshot clients, Iterable<Subscriber> subscribers) {
+        counter(out, "auction_ticks_total", "Ticks of the price generator.", ticks.sum());
+        counter(out, "auction_sent_bytes_total", "Bytes written to the clients.", bytesSent.sum());
+        counter(out, "auction_socket_writes_total", "Writes of batched frames to the client sockets.", flushes.sum());
+        counter(out, "auction_purchase_requests_total", "Purchase requests received.", purchaseRequests.sum());
+        counter(out, "auction_accepted_connections_total", "Connections accepted.", clients.accepted());
+        counter(out, "auction_rejected_connections_total", "Connections refused because the server was busy.",
+                rejectedConnections.sum());
+        counter(out, "auction_journal_lost_trades_total", "Filled purchases the trade journal could not record.",
+                lostTrades.sum());
+
+        header(out, "auction_backpressure_total",
+                "Offers dropped or conflated, or clients disconnected, because a client fell behind.", "counter");
+        for (OutboundQueue.Policy policy : OutboundQueue.Policy.values()) {
+            out.append("auction_backpressure_total{policy=\"").append(policy.label()).append("\"} ")
+                    .append(backpressure[policy.ordinal()].sum()).append('\n');
+        }
+
+        header(out, "auction_clients", "Connected clients by state.", "gauge");
+        out.append("auction_clients{state=\"connecting\"} ").append(clients.connecting()).append('\n');
+        out.append("auction_clients{state=\"active\"} ").append(clients.active()).append('\n');
+        out.append("auction_clients{state=\"finished\"} ").append(clients.finished()).append('\n');
+
+        header(out, "auction_outbound_backlog", "Prices waiting to be written to a client.", "gauge");
+        for (Subscriber subscriber : subscribers) {
+            out.append("auction_outbound_backlog{client=\"").append(subscriber).append("\"} ")
+                    .append(subscriber.backlog()).append('\n');
+        }
+
+        header(out, "jvm_gc_collections_total", "Garbage collections by collector.", "counter");
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            out.append("jvm_gc_collections_total{gc=\"").append(gc.getName()).append("\"} ")
+                    .append(gc.getCollectionCount()).append('\n');
+        }
+        header(out, "jvm_gc_collection_seconds_total", "Time spent in garbage collections by collector.", "counter");
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            out.append("jvm_gc_collection_seconds_total{gc=\"").append(gc.getName()).append("\"} ")
+                    .append(gc.getCollectionTime() / 1e3).append('\n');
+        }
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        gauge(out, "jvm_threads", "Live platform threads.", threads.getThreadCount());
+        gauge(out, "jvm_threads_daemon", "Live daemon platform threads.", threads.getDaemonThreadCount());
+        gauge(out, "jvm_threads_peak", "Highest number of live platform threads.", threads.getPeakThreadCount());
+
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        gauge(out, "jvm_heap_used_bytes", "Heap memory in use.", heap.getUsed());
+    }
+
+    /**
+     * Appends a counter without labels.
+     */
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        header(out, name, help, "counter");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Appends a gauge without labels.
+     */
+    private static void gauge(StringBuilder out, String name, String help, long value) {
+        header(out, name, help, "gauge");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Appends the help and type lines of a metric.
+     */
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+}
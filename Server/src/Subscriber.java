@@ -0,0 +1,50 @@
+/**
+ * A {@code Subscriber} is a connected client that receives the prices generated by the {@link Server}.
+ *
+ * <p>Each way of serving a connection (a dedicated thread or an event loop) provides its own implementation,
+ * so that the price generator does not need to know how the bytes reach the client.</p>
+ */
+public interface Subscriber {
+
+    /**
+     * Returns the number identifying the client, given in the order clients connect.
+     *
+     * @return the identifier of the client.
+     */
+    int id();
+
+    /**
+     * Returns the number choosing the {@link BroadcastShard} that sends the prices to the client. Clients served
+     * by the same thread should return the same number, so that their prices are handed over by that thread.
+     *
+     * @return any number, reduced modulo the number of shards; the identifier of the client by default.
+     */
+    default int shard() {
+        return id();
+    }
+
+    /**
+     * Sends a price offer to the client. The frame is shared with the other subscribers and must not be modified.
+     *
+     * @param frame the encoded price offer.
+     */
+    void send(PriceFrame frame);
+
+    /**
+     * Acknowledges a client that asked for the binary {@link Protocol}. The acknowledgement is sent after the
+     * prices already queued, and every price sent after it is encoded as a binary frame.
+     */
+    void useBinaryProtocol();
+
+    /**
+     * Returns the number of prices waiting to be written to the client. Called by the metrics, from any thread.
+     *
+     * @return the outbound backlog, approximate while prices are being sent or written.
+     */
+    int backlog();
+
+    /**
+     * Closes the connection to the client.
+     */
+    void close();
+}
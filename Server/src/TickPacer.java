@@ -0,0 +1,82 @@
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A {@code TickPacer} paces the price generator at a fixed rate, from one tick every few seconds up to
+ * hundreds of thousands of ticks per second.
+ *
+ * <p>Deadlines are computed from the start time rather than from the end of the previous tick, so time spent
+ * generating and sending a price does not make the schedule drift. Long waits park the thread, while the
+ * last few microseconds before a deadline are spun, since parking is not precise enough for
+ * sub-millisecond periods.</p>
+ */
+public class TickPacer {
+
+    /** Waits shorter than this are spun instead of parked. */
+    private static final long SPIN_THRESHOLD_NANOS = 50_000;
+
+    /** The time between two ticks in nanoseconds. */
+    private final long periodNanos;
+
+    /** The time of the first tick, from {@link System#nanoTime()}. */
+    private long startNanos;
+
+    /** The number of ticks released so far. */
+    private long ticks;
+
+    /**
+     * Constructs a {@code TickPacer} with the given rate.
+     *
+     * @param ticksPerSecond the target number of ticks per second.
+     * @throws IllegalArgumentException if the rate is not positive.
+     */
+    public TickPacer(double ticksPerSecond) {
+        if (!(ticksPerSecond > 0)) {
+            throw new IllegalArgumentException("Tick rate must be positive: " + ticksPerSecond);
+        }
+        this.periodNanos = Math.max(1, Math.round(1_000_000_000 / ticksPerSecond));
+    }
+
+    /**
+     * Waits until the next tick is due. The first call returns immediately and starts the schedule.
+     * If the caller fell behind, the call returns immediately until the schedule has caught up.
+     *
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    public void awaitNextTick() throws InterruptedException {
+        if (ticks == 0) {
+            startNanos = System.nanoTime();
+        } else {
+            long deadline = startNanos + ticks * periodNanos;
+            long remaining;
+            while ((remaining = deadline - System.nanoTime()) > 0) {
+                if (remaining > SPIN_THRESHOLD_NANOS) {
+                    LockSupport.parkNanos(remaining - SPIN_THRESHOLD_NANOS);
+                } else {
+                    Thread.onSpinWait();
+                }
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        }
+        ticks++;
+    }
+
+    /**
+     * Gets the target rate.
+     *
+     * @return the target number of ticks per second.
+     */
+    public double targetRate() {
+        return 1_000_000_000.0 / periodNanos;
+    }
+
+    /**
+     * Gets the number of ticks released so far.
+     *
+     * @return the number of ticks.
+     */
+    public long ticks() {
+        return ticks;
+    }
+}
@@ -0,0 +1,300 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A {@code TickRing} hands the prices generated by the {@link AuctionEngine} to the threads that act on them,
+ * in the style of the LMAX Disruptor.
+ *
+ * <p>The ring is an array of {@link Tick} slots allocated once, which a single producer, the price generator,
+ * fills in turn and publishes by advancing a cursor. Each consumer follows the cursor with a {@link Reader} of
+ * its own, at its own pace, and the producer only waits when the slowest reader is a whole ring behind.
+ * Publishing a tick writes into a slot and moves a sequence forward, so the steady state allocates nothing, and
+ * the producer and the readers never take a lock.</p>
+ *
+ * <p>The sequences are padded so that each one sits alone on its cache line: the cursor, written by the producer
+ * on every tick, and the sequence of each reader, written by its reader, never invalidate each other's line.</p>
+ */
+public final class TickRing {
+
+    /** The ticks, allocated once and reused for the life of the ring. */
+    private final Tick[] ticks;
+
+    /** The mask turning a sequence into an index of {@link #ticks}. */
+    private final int mask;
+
+    /** The sequence of the last published tick, -1 before the first one. */
+    private final Sequence cursor = new Sequence();
+
+    /** The readers the producer must not overtake. Only replaced while the ring is set up. */
+    private volatile Reader[] readers = new Reader[0];
+
+    /** The sequence of the tick being claimed or last published. Only accessed by the producer. */
+    private long next = -1;
+
+    /** The sequence of the slowest reader when the producer last looked. Only accessed by the producer. */
+    private long gate = -1;
+
+    /**
+     * Constructs a {@code TickRing}.
+     *
+     * @param capacity the number of slots, rounded up to a power of two.
+     */
+    public TickRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+        this.ticks = new Tick[size];
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            ticks[i] = new Tick();
+        }
+    }
+
+    /**
+     * Adds a reader to the ring. Readers are added before the producer publishes its first tick.
+     *
+     * @param wakeup the action waking the consumer up when a tick is published, called by the producer.
+     * @return the new reader, which has seen no tick yet.
+     */
+    public synchronized Reader reader(Runnable wakeup) {
+        Reader reader = new Reader(wakeup);
+        Reader[] appended = Arrays.copyOf(readers, readers.length + 1);
+        appended[readers.length] = reader;
+        readers = appended;
+        return reader;
+    }
+
+    /**
+     * Claims the next slot, waiting while the slowest reader is a whole ring behind. Only called by the producer,
+     * which fills the slot and then calls {@link #publish()}.
+     *
+     * @return the slot of the next tick.
+     */
+    public Tick claim() {
+        long wrap = ++next - ticks.length;
+        //the readers are only looked at again once the producer catches up with where they were
+        while (wrap > gate) {
+            gate = slowest();
+            if (wrap > gate) {
+                LockSupport.parkNanos(1);
+            }
+        }
+        return ticks[(int) next & mask];
+    }
+
+    /**
+     * Publishes the slot last claimed to the readers, and wakes them up.
+     */
+    public void publish() {
+        cursor.set(next);
+        for (Reader reader : readers) {
+            reader.wakeup.run();
+        }
+    }
+
+    /**
+     * Gets the number of ticks published since the ring was created.
+     *
+     * @return the number of ticks.
+     */
+    public long published() {
+        return cursor.get() + 1;
+    }
+
+    /**
+     * Appends the metrics of the ring: the ticks published, and how far the slowest reader is behind.
+     *
+     * @param out the builder receiving the metrics.
+     */
+    public void writeMetrics(StringBuilder out) {
+        long published = cursor.get();
+        long slowest = Math.min(published, slowest());
+        out.append("# HELP auction_prices_total Prices published to the broadcasters.\n");
+        out.append("# TYPE auction_prices_total counter\n");
+        out.append("auction_prices_total ").append(published + 1).append('\n');
+        out.append("# HELP auction_tick_ring_lag Prices published but not yet handled by the slowest consumer.\n");
+        out.append("# TYPE auction_tick_ring_lag gauge\n");
+        out.append("auction_tick_ring_lag ").append(published - slowest).append('\n');
+    }
+
+    /**
+     * Finds the sequence of the slowest reader.
+     *
+     * @return the lowest sequence of the readers, or the cursor if there is none.
+     */
+    private long slowest() {
+        long slowest = cursor.get();
+        for (Reader reader : readers) {
+            slowest = Math.min(slowest, reader.sequence.get());
+        }
+        return slowest;
+    }
+
+    /**
+     * A {@code Tick} is a slot of the ring: a price of a lot, encoded once for its subscribers. Written by the
+     * producer before it is published, and only read afterwards.
+     */
+    public static final class Tick {
+        private Lot lot; /** The lot of the price. */
+
+        private PriceFrame frame; /** The encoded price, {@code null} if nobody was subscribed to the lot. */
+
+        /**
+         * Fills the slot. Only called by the producer between {@link #claim()} and {@link #publish()}.
+         *
+         * @param lot the lot of the price.
+         * @param frame the encoded price, {@code null} if nobody is subscribed to the lot.
+         */
+        public void set(Lot lot, PriceFrame frame) {
+            this.lot = lot;
+            this.frame = frame;
+        }
+
+        /**
+         * Gets the lot of the price.
+         *
+         * @return the lot.
+         */
+        public Lot lot() {
+            return lot;
+        }
+
+        /**
+         * Gets the encoded price.
+         *
+         * @return the frame, {@code null} if nobody was subscribed to the lot.
+         */
+        public PriceFrame frame() {
+            return frame;
+        }
+    }
+
+    /**
+     * A {@code Handler} acts on the ticks seen by a reader.
+     */
+    public interface Handler {
+
+        /**
+         * Handles a tick. The slot must not be kept once the method returns.
+         *
+         * @param tick the tick.
+         */
+        void onTick(Tick tick);
+    }
+
+    /**
+     * A {@code Reader} follows the ticks for one consumer, which is the only thread using it.
+     */
+    public final class Reader {
+
+        /** The sequence of the last tick handled. */
+        private final Sequence sequence = new Sequence();
+
+        /** Wakes the consumer up. */
+        private final Runnable wakeup;
+
+        private Reader(Runnable wakeup) {
+            this.wakeup = wakeup;
+        }
+
+        /**
+         * Gets the sequence of the last tick this reader may handle.
+         *
+         * @return the cursor.
+         */
+        public long available() {
+            return cursor.get();
+        }
+
+        /**
+         * Handles the ticks up to a sequence obtained from {@link #available()}, then releases their slots to the
+         * producer.
+         *
+         * @param upTo the sequence of the last tick to handle; ticks already handled are skipped.
+         * @param handler the handler of the ticks.
+         * @return {@code true} if any tick was handled.
+         */
+        public boolean consume(long upTo, Handler handler) {
+            long handled = sequence.get();
+            if (upTo <= handled) {
+                return false;
+            }
+            for (long s = handled + 1; s <= upTo; s++) {
+                handler.onTick(ticks[(int) s & mask]);
+            }
+            sequence.set(upTo);
+            return true;
+        }
+
+        /**
+         * Gets the sequence of the last tick this reader handled.
+         *
+         * @return the sequence, -1 before the first tick.
+         */
+        public long handled() {
+            return sequence.get();
+        }
+
+        /**
+         * Tells whether ticks were published that this reader has not handled yet.
+         *
+         * @return {@code true} if the reader is behind the cursor.
+         */
+        public boolean behind() {
+            return sequence.get() < cursor.get();
+        }
+
+        /**
+         * Gets the sequence of the last tick published to the ring, so that work handed to the consumer by other
+         * means can be ordered with the ticks.
+         *
+         * @return the cursor.
+         */
+        public long published() {
+            return cursor.get();
+        }
+    }
+
+    /** The padding before a sequence, filling the rest of the cache line of whatever precedes it. */
+    @SuppressWarnings("unused")
+    private static class LeftPadding {
+        private long p1, p2, p3, p4, p5, p6, p7;
+    }
+
+    /** The value of a sequence, alone between its paddings since fields are laid out superclass first. */
+    private static class Value extends LeftPadding {
+        volatile long value = -1;
+    }
+
+    /** The padding after a sequence. */
+    @SuppressWarnings("unused")
+    private static class RightPadding extends Value {
+        private long p9, p10, p11, p12, p13, p14, p15;
+    }
+
+    /**
+     * A {@code Sequence} is a counter written by one thread and read by others, alone on its cache line. It is
+     * written with release semantics, which is all the readers need, instead of a full volatile write.
+     */
+    static final class Sequence extends RightPadding {
+
+        /** The handle on {@link Value#value}. */
+        private static final VarHandle VALUE;
+
+        static {
+            try {
+                VALUE = MethodHandles.lookup().findVarHandle(Value.class, "value", long.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        long get() {
+            return (long) VALUE.getAcquire(this);
+        }
+
+        void set(long value) {
+            VALUE.setRelease(this, value);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * A {@code TimerWheel} schedules the {@link Lot}s of the {@link AuctionEngine}.
+ *
+ * <p>The wheel is an array of slots, each holding a linked list of the lots due in that slot. Every call to
+ * {@link #advance(AuctionEngine)} visits one slot, so scheduling and firing a lot costs constant time
+ * whatever the number of lots. Lots due further away than one revolution carry the number of revolutions
+ * left. The wheel is not thread-safe and is only used by the engine thread.</p>
+ */
+public class TimerWheel {
+
+    /** The heads of the lists of lots in each slot. */
+    private final Lot[] slots;
+
+    /** Mask turning a tick into a slot index; the number of slots is a power of two. */
+    private final int mask;
+
+    /** The next tick to process. */
+    private long tick;
+
+    /** Lots fired during the current advance, linked through {@link Lot#next}. */
+    private Lot due;
+
+    /**
+     * Constructs a {@code TimerWheel}.
+     *
+     * @param size the minimum number of slots, rounded up to a power of two.
+     */
+    public TimerWheel(int size) {
+        int slotCount = Integer.highestOneBit(Math.max(1, size - 1)) << 1;
+        slots = new Lot[slotCount];
+        mask = slotCount - 1;
+    }
+
+    /**
+     * Schedules a lot.
+     *
+     * @param lot the lot, which must not be scheduled already.
+     * @param ticksAhead the number of advances to skip before the lot fires; 0 fires it on the next advance.
+     */
+    public void schedule(Lot lot, long ticksAhead) {
+        int slot = (int) ((tick + ticksAhead) & mask);
+        lot.rounds = ticksAhead / slots.length;
+        lot.next = slots[slot];
+        slots[slot] = lot;
+    }
+
+    /**
+     * Processes the current slot: the lots due generate a price and are scheduled again after their interval.
+     *
+     * @param engine the engine the lots belong to.
+     */
+    void advance(AuctionEngine engine) {
+        int slot = (int) (tick & mask);
+
+        //unlinks the due lots and counts down the others
+        Lot previous = null;
+        Lot lot = slots[slot];
+        while (lot != null) {
+            Lot next = lot.next;
+            if (lot.rounds == 0) {
+                if (previous == null) {
+                    slots[slot] = next;
+                } else {
+                    previous.next = next;
+                }
+                lot.next = due;
+                due = lot;
+            } else {
+                lot.rounds--;
+                previous = lot;
+            }
+            lot = next;
+        }
+        tick++;
+
+        //fires them once the slot is consistent, so that rescheduling into the same slot is safe
+        while (due != null) {
+            lot = due;
+            due = lot.next;
+            engine.fire(lot);
+            schedule(lot, lot.interval() - 1);
+        }
+    }
+}
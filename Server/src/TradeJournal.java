@@ -0,0 +1,336 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The {@code TradeJournal} persists every filled purchase to memory-mapped files.
+ *
+ * <p>The journal is a directory of segments of equal size, {@code trades-00000000.journal} and up, each holding
+ * fixed-size records written in place through a {@link MappedByteBuffer}:</p>
+ * <pre>
+ * [sequence: 8][time: 8][lot: 4][price: 4][bid: 4][buyer: 4]
+ * </pre>
+ * <p>where the sequence numbers the trades from 1 across segments and runs, the time is in milliseconds since
+ * the epoch and the buyer is the {@link Subscriber#id()} of the client. The sequence is written last, so a
+ * record with a sequence of 0 was not written completely, or not at all.</p>
+ *
+ * <p>Recording a trade claims a record with a single atomic increment and copies the fields into the mapped
+ * memory; it never waits on the disk. Once written, the record survives a crash of the server, since the
+ * memory belongs to the file. A background thread forces the written records to the disk every flush
+ * interval, so that they also survive a crash of the machine. Each segment counts its written records, so the
+ * thread keeps forcing a segment the recording threads have moved past until its last late record is written.
+ * It also maps the next segment ahead of time so that
+ * rolling over to it costs the recording threads nothing. A new run starts a new segment and continues the
+ * sequence of the previous one.</p>
+ *
+ * <p>A trade whose segment cannot be mapped is lost, leaving a hole in the sequence: it is logged as a warning
+ * with its sequence and counted in the {@link ServerMetrics}, so that it never disappears without a trace.</p>
+ */
+public final class TradeJournal {
+
+    /** The size of a record in bytes. */
+    static final int RECORD_SIZE = 32;
+
+    /** The offset of the sequence number in a record. */
+    private static final int SEQUENCE = 0;
+
+    /** The offset of the time in a record. */
+    private static final int TIME = 8;
+
+    /** The offset of the lot in a record. */
+    private static final int LOT = 16;
+
+    /** The offset of the price in a record. */
+    private static final int PRICE = 20;
+
+    /** The offset of the bid in a record. */
+    private static final int BID = 24;
+
+    /** The offset of the buyer in a record. */
+    private static final int BUYER = 28;
+
+    /** The directory holding the segments. */
+    private final Path directory;
+
+    /** The number of records in a segment. */
+    private final int recordsPerSegment;
+
+    /** The time between two forces of the written records to the disk, in nanoseconds. */
+    private final long flushIntervalNanos;
+
+    /** The sequence number of the first trade of this run. */
+    private final long firstSequence;
+
+    /** The number of the first segment of this run. */
+    private final long firstSegment;
+
+    /** The sequence number of the next trade. */
+    private final AtomicLong nextSequence;
+
+    /** The segment with the highest number written to. Replaced under the lock of the journal. */
+    private volatile Segment current;
+
+    /**
+     * The mapped segments still to be forced by the flusher thread, by number: the current one, the ones before
+     * it with records claimed but not written yet or not forced since, and the next one once mapped ahead of
+     * time. Guarded by the journal.
+     */
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+
+    /** The thread forcing the records to the disk. */
+    private final Thread flusher;
+
+    /** Cleared to stop the flusher thread. */
+    private volatile boolean running = true;
+
+    /**
+     * Opens a journal in a directory, creating the directory if needed, and starts its flusher thread.
+     *
+     * @param directory the directory of the segments.
+     * @param segmentSize the size of a segment in bytes, rounded down to whole records.
+     * @param flushInterval the time between two forces of the written records to the disk, in milliseconds.
+     * @throws IOException if the journal cannot be opened.
+     */
+    public TradeJournal(Path directory, long segmentSize, long flushInterval) throws IOException {
+        this.directory = directory;
+        this.recordsPerSegment = (int) Math.min(Integer.MAX_VALUE / RECORD_SIZE, Math.max(1, segmentSize / RECORD_SIZE));
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, flushInterval));
+        Files.createDirectories(directory);
+
+        //continues after the last segment and the last trade of the previous run
+        long lastSegment = -1;
+        try (DirectoryStream<Path> segments = Files.newDirectoryStream(directory, "trades-*.journal")) {
+            for (Path segment : segments) {
+                String name = segment.getFileName().toString();
+                lastSegment = Math.max(lastSegment, Long.parseLong(name.substring(7, name.length() - 8)));
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Unexpected segment name in " + directory, e);
+        }
+        long lastSequence = 0;
+        for (long number = lastSegment; number >= 0 && lastSequence == 0; number--) {
+            if (Files.exists(pathOf(number))) {
+                lastSequence = lastSequence(pathOf(number));
+            }
+        }
+        this.firstSequence = lastSequence + 1;
+        this.firstSegment = lastSegment + 1;
+        this.nextSequence = new AtomicLong(firstSequence);
+        this.current = map(firstSegment);
+        segments.put(firstSegment, current);
+
+        flusher = new Thread(this::flush, "journal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Records a filled purchase. Called by the matcher threads; never waits on the disk.
+     *
+     * @param lot the identifier of the lot.
+     * @param price the price paid.
+     * @param bid the highest price the buyer was willing to pay.
+     * @param buyer the identifier of the client.
+     */
+    public void record(int lot, int price, int bid, int buyer) {
+        long sequence = nextSequence.getAndIncrement();
+        long index = sequence - firstSequence;
+        long number = firstSegment + index / recordsPerSegment;
+        Segment segment = current;
+        if (segment.number != number) {
+            segment = segment(number);
+            if (segment == null) {
+                Server.metrics().lostTrade();
+                Log.warn("Lost trade {}: {}", sequence, "lot " + lot + " at " + price + " to client " + buyer);
+                return;
+            }
+        }
+        MappedByteBuffer buffer = segment.buffer;
+        int offset = (int) (index % recordsPerSegment) * RECORD_SIZE;
+        buffer.putLong(offset + TIME, System.currentTimeMillis());
+        buffer.putInt(offset + LOT, lot);
+        buffer.putInt(offset + PRICE, price);
+        buffer.putInt(offset + BID, bid);
+        buffer.putInt(offset + BUYER, buyer);
+        buffer.putLong(offset + SEQUENCE, sequence);
+        segment.written.incrementAndGet();
+    }
+
+    /**
+     * Returns the number of trades recorded by this run.
+     *
+     * @return the number of trades.
+     */
+    public long trades() {
+        return nextSequence.get() - firstSequence;
+    }
+
+    /**
+     * Stops the flusher thread and forces every record to the disk. Trades recorded afterwards may be lost.
+     */
+    public void close() {
+        running = false;
+        LockSupport.unpark(flusher);
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            for (Segment segment : segments.values()) {
+                segment.buffer.force();
+            }
+        }
+    }
+
+    /**
+     * Gets the segment of a record when it is not the current one, rolling over to it if it is after the
+     * current one. The records of a segment are claimed in order but written by several threads, so a late
+     * writer may still need a segment before the current one.
+     *
+     * @param number the number of the segment.
+     * @return the segment, or {@code null} if it could not be mapped.
+     */
+    private synchronized Segment segment(long number) {
+        Segment segment = segments.get(number);
+        if (segment == null) {
+            try {
+                segment = map(number);
+            } catch (IOException e) {
+                Log.warn("Failed to roll the trade journal over to {}: {}", pathOf(number), e.getMessage());
+                return null;
+            }
+            segments.put(number, segment);
+        }
+        if (number > current.number) {
+            current = segment;
+        }
+        return segment;
+    }
+
+    /**
+     * Forces the written records to the disk every flush interval, and maps the next segment once the current
+     * one is half full. A segment before the current one is dropped once all its records are written and forced.
+     * Run by the flusher thread.
+     */
+    private void flush() {
+        List<Segment> written = new ArrayList<>();
+        while (running) {
+            LockSupport.parkNanos(this, flushIntervalNanos);
+            long claimed = nextSequence.get();
+            Segment currentSegment;
+            synchronized (this) {
+                currentSegment = current;
+                written.addAll(segments.headMap(currentSegment.number, true).values());
+            }
+            for (Segment segment : written) {
+                //the records counted before the force are on the disk after it
+                int count = segment.written.get();
+                if (count != segment.forced) {
+                    segment.buffer.force();
+                    segment.forced = count;
+                }
+                if (segment != currentSegment && count == recordsPerSegment) {
+                    synchronized (this) {
+                        segments.remove(segment.number);
+                    }
+                }
+            }
+            written.clear();
+
+            if ((claimed - firstSequence) % recordsPerSegment >= recordsPerSegment / 2) {
+                mapNext(currentSegment.number + 1);
+            }
+        }
+    }
+
+    /**
+     * Maps the segment after the current one unless it is already mapped.
+     *
+     * @param number the number of the next segment.
+     */
+    private synchronized void mapNext(long number) {
+        if (segments.containsKey(number) || current.number >= number) {
+            return;
+        }
+        try {
+            segments.put(number, map(number));
+        } catch (IOException e) {
+            Log.warn("Failed to create trade journal segment {}: {}", pathOf(number), e.getMessage());
+        }
+    }
+
+    /**
+     * Maps a segment of this run, creating it if needed.
+     *
+     * @param number the number of the segment.
+     * @return the mapped segment.
+     * @throws IOException if the segment cannot be created.
+     */
+    private Segment map(long number) throws IOException {
+        try (FileChannel channel = FileChannel.open(pathOf(number),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            //the mapping stays valid once the channel is closed
+            return new Segment(number, channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) recordsPerSegment * RECORD_SIZE));
+        }
+    }
+
+    /**
+     * Finds the last trade recorded in a segment of a previous run.
+     *
+     * @param path the segment.
+     * @return the highest sequence number of the segment, or 0 if it holds no trade.
+     * @throws IOException if the segment cannot be read.
+     */
+    private static long lastSequence(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            for (int offset = (int) (channel.size() / RECORD_SIZE - 1) * RECORD_SIZE; offset >= 0; offset -= RECORD_SIZE) {
+                long sequence = buffer.getLong(offset + SEQUENCE);
+                if (sequence != 0) {
+                    return sequence;
+                }
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * Returns the path of a segment.
+     *
+     * @param number the number of the segment.
+     * @return the path in the journal directory.
+     */
+    private Path pathOf(long number) {
+        return directory.resolve(String.format("trades-%08d.journal", number));
+    }
+
+    /**
+     * A {@code Segment} is a mapped file of the journal.
+     */
+    private static final class Segment {
+        private final long number; /** The number of the segment. */
+
+        private final MappedByteBuffer buffer; /** The records of the segment. */
+
+        private final AtomicInteger written = new AtomicInteger(); /** The number of records written completely. */
+
+        private int forced; /** The number of records written when the segment was last forced. Only accessed by the flusher thread. */
+
+        private Segment(long number, MappedByteBuffer buffer) {
+            this.number = number;
+            this.buffer = buffer;
+        }
+    }
+}